@@ -0,0 +1,126 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session.benchmark;
+
+import com.dawsonsystems.session.MongoSessionManager;
+import com.github.fakemongo.Fongo;
+import com.mongodb.DB;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardHost;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Session contents and a started manager backed by an in-memory Fongo
+ * database, shared by the benchmarks.
+ */
+public final class Fixtures {
+
+	private static final String[] TYPES = { "string", "long", "date", "list" };
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Builds attributes of one value type, each roughly size bytes once
+	 * encoded. Types are string, long, date, list (of cart line maps) and
+	 * mixed, which cycles through the others.
+	 */
+	public static Map<String, Object> attributes(int count, int size,
+			String valueType) {
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		for (int i = 0; i < count; i++) {
+			String type = "mixed".equals(valueType) ? TYPES[i % TYPES.length]
+					: valueType;
+			attributes.put(type + i, value(type, i, size));
+		}
+		return attributes;
+	}
+
+	private static Object value(String type, int i, int size) {
+		if ("string".equals(type)) {
+			StringBuilder value = new StringBuilder(size);
+			while (value.length() < size) {
+				value.append("value-").append(i).append('-');
+			}
+			value.setLength(size);
+			return value.toString();
+		} else if ("long".equals(type)) {
+			return (long) i * 1000003;
+		} else if ("date".equals(type)) {
+			return new Date(1000000L * i);
+		} else if ("list".equals(type)) {
+			// A cart line encodes to about 40 bytes
+			List<Object> cart = new ArrayList<Object>();
+			for (int j = 0; j < Math.max(1, size / 40); j++) {
+				Map<Object, Object> line = new HashMap<Object, Object>();
+				line.put("sku", "SKU-" + j);
+				line.put("quantity", j);
+				line.put("price", j * 1.5d);
+				cart.add(line);
+			}
+			return cart;
+		}
+		throw new IllegalArgumentException("Unknown value type " + type);
+	}
+
+	/**
+	 * Starts a manager outside Tomcat, storing sessions in a fresh Fongo
+	 * database.
+	 */
+	public static MongoSessionManager startManager(boolean deltaPersistence,
+			String serializer) throws LifecycleException {
+		MongoSessionManager manager = manager(new Fongo("benchmark")
+				.getDB("sessions"));
+		manager.setDeltaPersistence(deltaPersistence);
+		manager.setSerializationStrategyClass(serializer);
+		manager.start();
+		return manager;
+	}
+
+	/**
+	 * Creates a manager outside Tomcat storing sessions in the given
+	 * database, left for the caller to configure and start.
+	 */
+	public static MongoSessionManager manager(DB db) {
+		Logger.getLogger("MongoManager").setLevel(Level.WARNING);
+		StandardHost host = new StandardHost();
+		host.setName("localhost");
+		StandardContext context = new StandardContext();
+		context.setName("benchmark");
+		context.setPath("/benchmark");
+		host.addChild(context);
+
+		MongoSessionManager manager = new MongoSessionManager();
+		manager.setContext(context);
+		manager.setDb(db);
+		return manager;
+	}
+}
@@ -0,0 +1,117 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session.benchmark;
+
+import com.dawsonsystems.session.MongoSessionManager;
+
+import org.apache.catalina.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpSession;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads a session and reads one or all of its attributes. With delta
+ * persistence attributes are decoded on first access, otherwise the whole
+ * map is decoded by loadSession.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyDecodeBenchmark {
+
+	@Param({ "32" })
+	public int attributes;
+
+	@Param({ "16", "1024" })
+	public int attributeSize;
+
+	@Param({ "list", "mixed" })
+	public String valueType;
+
+	@Param({ "false", "true" })
+	public boolean deltaPersistence;
+
+	private MongoSessionManager manager;
+	private String id;
+	private String first;
+	private String[] names;
+
+	@Setup
+	public void setup() throws Exception {
+		manager = Fixtures.startManager(deltaPersistence,
+				"com.dawsonsystems.session.JavaSerializer");
+		Session session = manager.createSession(null);
+		Map<String, Object> data = Fixtures.attributes(attributes,
+				attributeSize, valueType);
+		for (Map.Entry<String, Object> entry : data.entrySet()) {
+			session.getSession().setAttribute(entry.getKey(), entry.getValue());
+		}
+		manager.save(session);
+		id = session.getId();
+		names = data.keySet().toArray(new String[data.size()]);
+		first = names[0];
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		manager.stop();
+	}
+
+	@Benchmark
+	public Object loadReadOne() throws Exception {
+		return load().getAttribute(first);
+	}
+
+	@Benchmark
+	public int loadReadAll() throws Exception {
+		HttpSession session = load();
+		int found = 0;
+		for (String name : names) {
+			if (session.getAttribute(name) != null) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	private HttpSession load() throws Exception {
+		// Each iteration stands for a new request
+		manager.getCurrentSession().remove();
+		return manager.loadSession(id).getSession();
+	}
+}
@@ -0,0 +1,366 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session.benchmark;
+
+import com.dawsonsystems.session.FaultInjectingDB;
+import com.dawsonsystems.session.MongoSessionManager;
+import com.dawsonsystems.session.MongoSessionTrackerValve;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.IntrospectionUtils;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end load test: starts embedded Tomcat with the manager and the
+ * tracker valve, backed by a FaultInjectingDB, and drives it with
+ * concurrent virtual users over HTTP. Reports throughput, latency
+ * percentiles per request type and Mongo calls per request.
+ * <p>
+ * Takes key=value arguments:
+ * <ul>
+ * <li>users - concurrent virtual users, 32</li>
+ * <li>seconds - measured run time, 30</li>
+ * <li>warmup - seconds run before measuring, 5</li>
+ * <li>mix - weights of the request types, read=70,mutate=25,cart=5</li>
+ * <li>visit - requests a user makes before starting a new session, 50</li>
+ * <li>latency - milliseconds added to every Mongo call, 0</li>
+ * <li>any other key sets the manager attribute of that name, for example
+ * deltaPersistence=true or writeBehind=true</li>
+ * </ul>
+ * Read requests only read the session, mutate requests change a small
+ * attribute and cart requests add a line to a cart that grows up to 200
+ * lines. Run it from the shaded jar with
+ * <code>java -cp target/benchmarks.jar com.dawsonsystems.session.benchmark.LoadHarness users=64</code>.
+ */
+public class LoadHarness {
+
+	private static final String[] TYPES = { "read", "mutate", "cart" };
+	private static final int CART_LINES = 200;
+
+	private final Map<String, String> options = new LinkedHashMap<String, String>();
+	private final AtomicLong errors = new AtomicLong();
+	private volatile boolean measuring;
+	private volatile boolean running = true;
+
+	public static void main(String[] args) throws Exception {
+		LoadHarness harness = new LoadHarness();
+		harness.options.put("users", "32");
+		harness.options.put("seconds", "30");
+		harness.options.put("warmup", "5");
+		harness.options.put("mix", "read=70,mutate=25,cart=5");
+		harness.options.put("visit", "50");
+		harness.options.put("latency", "0");
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			harness.options.put(arg.substring(0, split),
+					arg.substring(split + 1));
+		}
+		harness.run();
+	}
+
+	private int intOption(String name) {
+		return Integer.parseInt(options.remove(name));
+	}
+
+	private void run() throws Exception {
+		int users = intOption("users");
+		int seconds = intOption("seconds");
+		int warmup = intOption("warmup");
+		int visit = intOption("visit");
+		final int[] weights = weights(options.remove("mix"));
+
+		FaultInjectingDB db = new FaultInjectingDB("load");
+		db.setLatencyMillis(intOption("latency"));
+		MongoSessionManager manager = new MongoSessionManager();
+		manager.setDb(db);
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			if (!IntrospectionUtils.setProperty(manager,
+					option.getKey(), option.getValue())) {
+				throw new IllegalArgumentException("Unknown option "
+						+ option.getKey());
+			}
+		}
+
+		Tomcat tomcat = new Tomcat();
+		tomcat.setPort(0);
+		File base = new File(System.getProperty("java.io.tmpdir"),
+				"load-harness");
+		tomcat.setBaseDir(base.getAbsolutePath());
+		Context context = tomcat.addContext("", base.getAbsolutePath());
+		context.setManager(manager);
+		context.getPipeline().addValve(new MongoSessionTrackerValve());
+		Tomcat.addServlet(context, "app", new AppServlet());
+		context.addServletMapping("/app", "app");
+		tomcat.start();
+		String url = "http://localhost:"
+				+ tomcat.getConnector().getLocalPort() + "/app?type=";
+
+		List<VirtualUser> virtualUsers = new ArrayList<VirtualUser>();
+		CountDownLatch done = new CountDownLatch(users);
+		for (int i = 0; i < users; i++) {
+			VirtualUser user = new VirtualUser(url, weights, visit, i, done);
+			virtualUsers.add(user);
+			user.start();
+		}
+
+		Thread.sleep(warmup * 1000L);
+		long reads = db.getReads();
+		long writes = db.getWrites();
+		measuring = true;
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		measuring = false;
+		long elapsed = System.nanoTime() - start;
+		reads = db.getReads() - reads;
+		writes = db.getWrites() - writes;
+		running = false;
+		done.await();
+
+		report(virtualUsers, elapsed, reads, writes);
+		tomcat.stop();
+	}
+
+	private static int[] weights(String mix) {
+		int[] weights = new int[TYPES.length];
+		for (String part : mix.split(",")) {
+			String[] weight = part.split("=");
+			int type = Arrays.asList(TYPES).indexOf(weight[0].trim());
+			if (type < 0) {
+				throw new IllegalArgumentException("Unknown request type "
+						+ weight[0]);
+			}
+			weights[type] = Integer.parseInt(weight[1].trim());
+		}
+		for (int i = 1; i < weights.length; i++) {
+			weights[i] += weights[i - 1];
+		}
+		return weights;
+	}
+
+	private void report(List<VirtualUser> virtualUsers, long elapsedNanos,
+			long reads, long writes) {
+		Latencies all = new Latencies();
+		Map<String, Latencies> byType = new LinkedHashMap<String, Latencies>();
+		for (String type : TYPES) {
+			Latencies latencies = new Latencies();
+			for (VirtualUser user : virtualUsers) {
+				latencies.addAll(user.latencies.get(type));
+			}
+			byType.put(type, latencies);
+			all.addAll(latencies);
+		}
+
+		int requests = all.size;
+		System.out.printf("%d requests in %.1fs, %.0f requests/s, %d errors%n",
+				requests, elapsedNanos / 1e9, requests / (elapsedNanos / 1e9),
+				errors.get());
+		System.out.printf("%.2f Mongo reads and %.2f writes per request%n",
+				(double) reads / Math.max(1, requests), (double) writes
+						/ Math.max(1, requests));
+		System.out.printf("%-8s %10s %10s %10s %10s%n", "type", "requests",
+				"p50 ms", "p99 ms", "p999 ms");
+		byType.put("all", all);
+		for (Map.Entry<String, Latencies> entry : byType.entrySet()) {
+			Latencies latencies = entry.getValue();
+			latencies.sort();
+			System.out.printf("%-8s %10d %10.3f %10.3f %10.3f%n",
+					entry.getKey(), latencies.size,
+					latencies.percentile(0.5), latencies.percentile(0.99),
+					latencies.percentile(0.999));
+		}
+	}
+
+	/**
+	 * Request latencies in nanoseconds, recorded by a single thread.
+	 */
+	private static class Latencies {
+		private long[] values = new long[1024];
+		private int size;
+
+		void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		void addAll(Latencies other) {
+			for (int i = 0; i < other.size; i++) {
+				add(other.values[i]);
+			}
+		}
+
+		void sort() {
+			Arrays.sort(values, 0, size);
+		}
+
+		double percentile(double fraction) {
+			if (size == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(fraction * size) - 1;
+			return values[Math.max(0, index)] / 1e6;
+		}
+	}
+
+	private class VirtualUser extends Thread {
+		private final String url;
+		private final int[] weights;
+		private final int visit;
+		private final CountDownLatch done;
+		private final Random random;
+		private final Map<String, Latencies> latencies = new HashMap<String, Latencies>();
+		private String cookie;
+		private int requests;
+
+		VirtualUser(String url, int[] weights, int visit, int number,
+				CountDownLatch done) {
+			super("VirtualUser" + number);
+			this.url = url;
+			this.weights = weights;
+			this.visit = visit;
+			this.done = done;
+			this.random = new Random(number);
+			for (String type : TYPES) {
+				latencies.put(type, new Latencies());
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					if (requests++ % visit == 0) {
+						cookie = null;
+					}
+					String type = pick();
+					long start = System.nanoTime();
+					try {
+						request(type);
+					} catch (IOException e) {
+						errors.incrementAndGet();
+						cookie = null;
+						continue;
+					}
+					if (measuring) {
+						latencies.get(type).add(System.nanoTime() - start);
+					}
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+
+		private String pick() {
+			int roll = random.nextInt(weights[weights.length - 1]);
+			for (int i = 0; i < weights.length; i++) {
+				if (roll < weights[i]) {
+					return TYPES[i];
+				}
+			}
+			return TYPES[0];
+		}
+
+		private void request(String type) throws IOException {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url
+					+ type).openConnection();
+			if (cookie != null) {
+				connection.setRequestProperty("Cookie", cookie);
+			}
+			if (connection.getResponseCode() != 200) {
+				throw new IOException("Status " + connection.getResponseCode());
+			}
+			String setCookie = connection.getHeaderField("Set-Cookie");
+			if (setCookie != null) {
+				cookie = setCookie.substring(0, setCookie.indexOf(';'));
+			}
+			// Drain the body so the connection is kept alive
+			InputStream in = connection.getInputStream();
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) >= 0) {
+			}
+			in.close();
+		}
+	}
+
+	private static class AppServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected void doGet(HttpServletRequest request,
+				HttpServletResponse response) throws IOException {
+			HttpSession session = request.getSession(true);
+			if (session.isNew()) {
+				session.setAttribute("user", "user-" + session.getId());
+				session.setAttribute("locale", "en_GB");
+				session.setAttribute("visits", 0);
+			}
+			String type = request.getParameter("type");
+			if ("mutate".equals(type)) {
+				Integer visits = (Integer) session.getAttribute("visits");
+				session.setAttribute("visits", visits == null ? 1 : visits + 1);
+			} else if ("cart".equals(type)) {
+				List<Map<String, Object>> cart = (List<Map<String, Object>>) session
+						.getAttribute("cart");
+				cart = cart == null ? new ArrayList<Map<String, Object>>()
+						: new ArrayList<Map<String, Object>>(cart);
+				if (cart.size() >= CART_LINES) {
+					cart.remove(0);
+				}
+				Map<String, Object> line = new HashMap<String, Object>();
+				line.put("sku", "SKU-" + cart.size());
+				line.put("quantity", cart.size() % 5 + 1);
+				line.put("price", cart.size() * 1.25d);
+				line.put("description", "Product description of line "
+						+ cart.size());
+				cart.add(line);
+				session.setAttribute("cart", cart);
+			} else {
+				session.getAttribute("user");
+				session.getAttribute("cart");
+			}
+			response.setContentType("text/plain");
+			response.getWriter().print("ok");
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session.benchmark;
+
+import com.dawsonsystems.session.FaultInjectingDB;
+import com.dawsonsystems.session.MongoSessionManager;
+
+import org.apache.catalina.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives sessions through a simulated Mongo outage with the circuit breaker
+ * on: counts up an attribute while Mongo is healthy, failing, then back,
+ * and checks every increment reached Mongo once the fallback store was
+ * reconciled. Takes the number of sessions and the outage rounds.
+ */
+public class OutageSimulation {
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		FaultInjectingDB db = new FaultInjectingDB("outage");
+		MongoSessionManager manager = Fixtures.manager(db);
+		manager.setCircuitFailureThreshold(3);
+		manager.setCircuitOpenMillis(200);
+		manager.setNearCacheSize(sessions);
+		manager.start();
+
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < sessions; i++) {
+			Session session = manager.createSession(null);
+			session.getSession().setAttribute("counter", 0);
+			manager.save(session);
+			ids.add(session.getId());
+		}
+
+		round(manager, ids, "healthy");
+		db.setFailing(true);
+		for (int i = 0; i < rounds; i++) {
+			round(manager, ids, "outage");
+		}
+		db.setFailing(false);
+		round(manager, ids, "recovering");
+
+		Thread.sleep(manager.getCircuitOpenMillis());
+		for (int i = 0; i < 3; i++) {
+			manager.backgroundProcess();
+		}
+		manager.stop();
+
+		// A fresh manager reads what actually reached Mongo
+		MongoSessionManager reader = Fixtures.manager(db);
+		reader.start();
+		int expected = rounds + 2;
+		int lost = 0;
+		for (String id : ids) {
+			Object counter = reader.loadSession(id).getSession()
+					.getAttribute("counter");
+			if (!Integer.valueOf(expected).equals(counter)) {
+				lost++;
+			}
+		}
+		reader.stop();
+		System.out.println(lost + " of " + sessions
+				+ " sessions lost changes made during the outage");
+		if (lost > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void round(MongoSessionManager manager, List<String> ids,
+			String phase) throws Exception {
+		long start = System.nanoTime();
+		for (String id : ids) {
+			Session session = manager.loadSession(id);
+			Integer counter = (Integer) session.getSession().getAttribute(
+					"counter");
+			session.getSession().setAttribute("counter", counter + 1);
+			manager.save(session);
+		}
+		long micros = (System.nanoTime() - start) / 1000 / ids.size();
+		System.out.println(phase + ": " + micros + "us per request, circuit "
+				+ (manager.isCircuitOpen() ? "open" : "closed"));
+	}
+}
@@ -0,0 +1,103 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session.benchmark;
+
+import com.dawsonsystems.session.FaultInjectingDB;
+import com.dawsonsystems.session.MongoSessionManager;
+
+import org.apache.catalina.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads sessions from a secondary that lags behind the primary, counting up
+ * an attribute once per request as fast as requests come in. Runs once
+ * reading whatever the secondary has, which loses increments, and once with
+ * read-your-writes, which must not. Takes the number of sessions, rounds
+ * and the replication lag in milliseconds.
+ */
+public class ReplicaLagSimulation {
+
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		long lag = args.length > 2 ? Long.parseLong(args[2]) : 500;
+
+		run("secondary only", 0, sessions, rounds, lag);
+		int lost = run("read-your-writes", 10000, sessions, rounds, lag);
+		if (lost > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static int run(String mode, int readYourWritesSize,
+			int sessions, int rounds, long lag) throws Exception {
+		FaultInjectingDB db = new FaultInjectingDB("replica");
+		db.setReplicationLagMillis(lag);
+		MongoSessionManager manager = Fixtures.manager(db);
+		manager.setReadPreference("secondaryPreferred");
+		manager.setReadYourWritesSize(readYourWritesSize);
+		manager.start();
+
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < sessions; i++) {
+			Session session = manager.createSession(null);
+			session.getSession().setAttribute("counter", 0);
+			manager.save(session);
+			ids.add(session.getId());
+		}
+		for (int i = 0; i < rounds; i++) {
+			for (String id : ids) {
+				// Each load is a new request, not served from the thread local
+				manager.getCurrentSession().remove();
+				Session session = manager.loadSession(id);
+				Integer counter = (Integer) session.getSession().getAttribute(
+						"counter");
+				session.getSession().setAttribute("counter",
+						counter == null ? 1 : counter + 1);
+				manager.save(session);
+			}
+		}
+		manager.stop();
+
+		// Reads what reached the primary
+		MongoSessionManager reader = Fixtures.manager(db);
+		reader.start();
+		int lost = 0;
+		for (String id : ids) {
+			Object counter = reader.loadSession(id).getSession()
+					.getAttribute("counter");
+			if (!Integer.valueOf(rounds).equals(counter)) {
+				lost++;
+			}
+		}
+		reader.stop();
+		String stale = readYourWritesSize == 0 ? "" : ", "
+				+ manager.getMetrics().getStaleSecondaryReads() + " of "
+				+ manager.getMetrics().getSecondaryReads()
+				+ " secondary reads were stale and read again";
+		System.out.println(mode + ": " + lost + " of " + sessions
+				+ " sessions lost increments" + stale);
+		return lost;
+	}
+}
@@ -0,0 +1,98 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session.benchmark;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.TypeReference;
+import com.dawsonsystems.session.TypedBinarySerializer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the fastjson encoding save/loadSession use by default with the
+ * TypedBinarySerializer payload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+	@Param({ "4", "32" })
+	public int attributes;
+
+	@Param({ "16", "1024" })
+	public int attributeSize;
+
+	@Param({ "string", "list", "mixed" })
+	public String valueType;
+
+	private final TypedBinarySerializer binary = new TypedBinarySerializer();
+	private Map<Object, Object> session;
+	private String json;
+	private byte[] encoded;
+
+	@Setup
+	public void setup() throws Exception {
+		session = new HashMap<Object, Object>(Fixtures.attributes(attributes,
+				attributeSize, valueType));
+		json = JSON.toJSONString(session);
+		encoded = binary.encode(session);
+	}
+
+	@Benchmark
+	public String jsonEncode() {
+		return JSON.toJSONString(session);
+	}
+
+	@Benchmark
+	public Map<Object, Object> jsonDecode() {
+		return JSON.parseObject(json, new TypeReference<Map<Object, Object>>() {
+		});
+	}
+
+	@Benchmark
+	public byte[] binaryEncode() throws Exception {
+		return binary.encode(session);
+	}
+
+	@Benchmark
+	public Object binaryDecode() throws Exception {
+		return binary.decode(encoded, 0, encoded.length);
+	}
+}
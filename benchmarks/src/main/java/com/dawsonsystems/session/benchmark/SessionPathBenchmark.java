@@ -0,0 +1,116 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session.benchmark;
+
+import com.dawsonsystems.session.JavaSerializer;
+import com.dawsonsystems.session.MongoSessionManager;
+
+import org.apache.catalina.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpSession;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The session paths a request goes through: copying attributes out of and
+ * into a session, and a full save followed by loadSession against an
+ * in-memory database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionPathBenchmark {
+
+	@Param({ "4", "32" })
+	public int attributes;
+
+	@Param({ "16", "1024" })
+	public int attributeSize;
+
+	@Param({ "string", "list", "mixed" })
+	public String valueType;
+
+	@Param({ "false", "true" })
+	public boolean deltaPersistence;
+
+	@Param({ "com.dawsonsystems.session.JavaSerializer" })
+	public String serializer;
+
+	private final JavaSerializer javaSerializer = new JavaSerializer();
+	private MongoSessionManager manager;
+	private Map<Object, Object> data;
+	private Session session;
+	private long counter;
+
+	@Setup
+	public void setup() throws Exception {
+		manager = Fixtures.startManager(deltaPersistence, serializer);
+		data = new HashMap<Object, Object>(Fixtures.attributes(attributes,
+				attributeSize, valueType));
+		session = manager.createSession(null);
+		javaSerializer.deserializeInto(data, (HttpSession) session);
+		manager.save(session);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		manager.stop();
+	}
+
+	@Benchmark
+	public Map<Object, Object> serializeFrom() throws Exception {
+		return javaSerializer.serializeFrom((HttpSession) session);
+	}
+
+	@Benchmark
+	public HttpSession deserializeInto() throws Exception {
+		return javaSerializer.deserializeInto(data,
+				(HttpSession) manager.createEmptySession());
+	}
+
+	/**
+	 * One attribute changes per request, so delta persistence writes one
+	 * field where the legacy layout rewrites the whole map.
+	 */
+	@Benchmark
+	public Session saveThenLoad() throws Exception {
+		session.getSession().setAttribute("counter", counter++);
+		manager.save(session);
+		return manager.loadSession(session.getId());
+	}
+}
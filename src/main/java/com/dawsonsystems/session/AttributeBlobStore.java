@@ -0,0 +1,156 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSInputFile;
+
+import org.bson.types.Binary;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Keeps attribute values too large for the session document in GridFS. The
+ * document holds a small reference in their place, and the value is only
+ * fetched when the attribute is decoded. Each file records the session it
+ * belongs to, so files can be found again once nothing refers to them.
+ */
+class AttributeBlobStore {
+	private static final String BUCKET = "sessionblobs";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final GridFS fs;
+	private final DBCollection files;
+	private final DBCollection chunks;
+
+	AttributeBlobStore(DB db) {
+		fs = new GridFS(db, BUCKET);
+		files = db.getCollection(BUCKET + ".files");
+		chunks = db.getCollection(BUCKET + ".chunks");
+		files.ensureIndex(new BasicDBObject("metadata.session", 1));
+		files.ensureIndex(new BasicDBObject("uploadDate", 1));
+	}
+
+	static boolean isReference(Object stored) {
+		return stored instanceof DBObject
+				&& ((DBObject) stored).containsField("blob");
+	}
+
+	static long length(DBObject reference) {
+		return ((Number) reference.get("length")).longValue();
+	}
+
+	/**
+	 * The hash of the stored value the reference stands for, so a value read
+	 * back and left unchanged is not taken for a modified one.
+	 */
+	static int hash(DBObject reference) {
+		return ((Number) reference.get("hash")).intValue();
+	}
+
+	/**
+	 * Writes a value in its stored form, BSON binary or JSON string, and
+	 * returns the reference to keep in the session document.
+	 */
+	DBObject store(String sessionId, Object encoded, int hash) {
+		boolean binary = encoded instanceof Binary;
+		byte[] bytes = binary ? ((Binary) encoded).getData()
+				: ((String) encoded).getBytes(UTF8);
+		GridFSInputFile file = fs.createFile(bytes);
+		file.setMetaData(new BasicDBObject("session", sessionId));
+		file.save();
+
+		BasicDBObject reference = new BasicDBObject("blob", file.getId());
+		reference.put("length", (long) bytes.length);
+		reference.put("hash", hash);
+		reference.put("binary", binary);
+		return reference;
+	}
+
+	/**
+	 * Reads the value a reference points to, copying its chunks into a
+	 * single array as the cursor streams them in. Returns the bytes of a
+	 * binary value or the JSON string.
+	 */
+	Object fetch(DBObject reference) throws IOException {
+		Object blob = reference.get("blob");
+		byte[] bytes = new byte[(int) length(reference)];
+		int read = 0;
+		DBCursor cursor = chunks.find(new BasicDBObject("files_id", blob))
+				.sort(new BasicDBObject("n", 1));
+		try {
+			while (cursor.hasNext()) {
+				byte[] data = (byte[]) cursor.next().get("data");
+				int length = Math.min(data.length, bytes.length - read);
+				System.arraycopy(data, 0, bytes, read, length);
+				read += length;
+			}
+		} finally {
+			cursor.close();
+		}
+		if (read < bytes.length) {
+			throw new IOException("Attribute blob " + blob + " is missing");
+		}
+		return Boolean.TRUE.equals(reference.get("binary")) ? bytes
+				: new String(bytes, UTF8);
+	}
+
+	void removeSession(String sessionId) {
+		List<Object> blobIds = new ArrayList<Object>();
+		DBCursor cursor = files.find(
+				new BasicDBObject("metadata.session", sessionId),
+				new BasicDBObject("_id", 1));
+		try {
+			while (cursor.hasNext()) {
+				blobIds.add(cursor.next().get("_id"));
+			}
+		} finally {
+			cursor.close();
+		}
+		if (!blobIds.isEmpty()) {
+			remove(blobIds);
+		}
+	}
+
+	/**
+	 * Removes files along with their chunks, chunks first so a file is never
+	 * left pointing at missing data.
+	 */
+	void remove(Collection<Object> blobIds) {
+		BasicDBObject in = new BasicDBObject("$in", blobIds);
+		chunks.remove(new BasicDBObject("files_id", in));
+		files.remove(new BasicDBObject("_id", in));
+	}
+
+	DBCollection getFiles() {
+		return files;
+	}
+}
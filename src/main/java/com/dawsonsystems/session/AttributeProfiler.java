@@ -0,0 +1,247 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Samples saves to profile session attributes by name: the distribution of
+ * their encoded size, how often they change and how long they take to
+ * encode. One save in sampleRate is profiled, which encodes its attributes
+ * once more, so the rate keeps the cost down. Attribute names beyond the
+ * first MAX_ATTRIBUTES are not tracked.
+ */
+public class AttributeProfiler implements AttributeProfilerMBean {
+
+	static final int MAX_ATTRIBUTES = 1000;
+
+	private static final class Stats {
+		final String name;
+		long samples;
+		long changes;
+		long totalSize;
+		long bytesWritten;
+		long encodes;
+		long encodeNanos;
+		long maxSize;
+		final long[] sizes = new long[LatencyHistogram.BUCKETS];
+
+		Stats(String name) {
+			this.name = name;
+		}
+
+		synchronized void record(boolean changed, boolean written,
+				long size, long nanos) {
+			samples++;
+			totalSize += size;
+			if (changed) {
+				changes++;
+			}
+			if (written) {
+				bytesWritten += size;
+			}
+			if (nanos >= 0) {
+				encodes++;
+				encodeNanos += nanos;
+			}
+			maxSize = Math.max(maxSize, size);
+			sizes[LatencyHistogram.bucket(size)]++;
+		}
+
+		private long size(double quantile) {
+			long rank = (long) Math.ceil(quantile * samples);
+			long seen = 0;
+			for (int b = 0; b < sizes.length; b++) {
+				seen += sizes[b];
+				if (seen >= rank && seen > 0) {
+					return Math.min(maxSize, LatencyHistogram.upperBound(b));
+				}
+			}
+			return 0;
+		}
+
+		synchronized Snapshot snapshot() {
+			return new Snapshot(name, samples, samples == 0 ? 0 : totalSize
+					/ samples, size(0.5), size(0.99), maxSize,
+					samples == 0 ? 0 : (double) changes / samples,
+					bytesWritten, encodeNanos, encodes == 0 ? 0 : encodeNanos
+							/ encodes);
+		}
+	}
+
+	/**
+	 * The figures of one attribute at a point in time, which reports sort.
+	 */
+	private static final class Snapshot {
+		final String name;
+		final long samples;
+		final long averageSize;
+		final long p50Size;
+		final long p99Size;
+		final long maxSize;
+		final double churn;
+		final long bytesWritten;
+		final long encodeNanos;
+		final long nanosPerEncode;
+
+		Snapshot(String name, long samples, long averageSize, long p50Size,
+				long p99Size, long maxSize, double churn, long bytesWritten,
+				long encodeNanos, long nanosPerEncode) {
+			this.name = name;
+			this.samples = samples;
+			this.averageSize = averageSize;
+			this.p50Size = p50Size;
+			this.p99Size = p99Size;
+			this.maxSize = maxSize;
+			this.churn = churn;
+			this.bytesWritten = bytesWritten;
+			this.encodeNanos = encodeNanos;
+			this.nanosPerEncode = nanosPerEncode;
+		}
+
+		String describe(int sampleRate) {
+			return name + ": " + samples + " samples, size p50 " + p50Size
+					+ " p99 " + p99Size + " max " + maxSize
+					+ " bytes, changed in " + Math.round(churn * 100)
+					+ "%, about " + bytesWritten * sampleRate
+					+ " bytes written, " + nanosPerEncode / 1000
+					+ "us per encode";
+		}
+	}
+
+	private final ConcurrentMap<String, Stats> attributes = new ConcurrentHashMap<String, Stats>();
+	private final LongAdder sampledSaves = new LongAdder();
+	private volatile int sampleRate;
+
+	public AttributeProfiler(int sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Whether the current save is to be profiled, with probability
+	 * 1/sampleRate. The draw is thread local, so nothing is shared.
+	 */
+	boolean sample() {
+		int rate = sampleRate;
+		if (rate <= 0 || ThreadLocalRandom.current().nextInt(rate) != 0) {
+			return false;
+		}
+		sampledSaves.increment();
+		return true;
+	}
+
+	/**
+	 * Records an attribute of a sampled save. It is written whenever it
+	 * changed with deltaPersistence, and whenever anything changed without.
+	 * nanos is the time taken to encode it, or -1 if it was still encoded
+	 * from loading.
+	 */
+	void record(String name, boolean changed, boolean written, long size,
+			long nanos) {
+		Stats stats = attributes.get(name);
+		if (stats == null) {
+			if (attributes.size() >= MAX_ATTRIBUTES) {
+				return;
+			}
+			Stats created = new Stats(name);
+			stats = attributes.putIfAbsent(name, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		stats.record(changed, written, size, nanos);
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public void setSampleRate(int sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public long getSampledSaves() {
+		return sampledSaves.sum();
+	}
+
+	public String[] topBySize(int n) {
+		return top(n, new Comparator<Snapshot>() {
+			public int compare(Snapshot a, Snapshot b) {
+				return compareLongs(b.averageSize, a.averageSize);
+			}
+		});
+	}
+
+	public String[] topByChurn(int n) {
+		return top(n, new Comparator<Snapshot>() {
+			public int compare(Snapshot a, Snapshot b) {
+				return Double.compare(b.churn, a.churn);
+			}
+		});
+	}
+
+	public String[] topByBytesWritten(int n) {
+		return top(n, new Comparator<Snapshot>() {
+			public int compare(Snapshot a, Snapshot b) {
+				return compareLongs(b.bytesWritten, a.bytesWritten);
+			}
+		});
+	}
+
+	public String[] topBySerializationTime(int n) {
+		return top(n, new Comparator<Snapshot>() {
+			public int compare(Snapshot a, Snapshot b) {
+				return compareLongs(b.encodeNanos, a.encodeNanos);
+			}
+		});
+	}
+
+	public void resetStatistics() {
+		attributes.clear();
+		sampledSaves.reset();
+	}
+
+	private String[] top(int n, Comparator<Snapshot> order) {
+		List<Snapshot> all = new ArrayList<Snapshot>();
+		for (Stats stats : attributes.values()) {
+			all.add(stats.snapshot());
+		}
+		Collections.sort(all, order);
+		int rate = Math.max(1, sampleRate);
+		String[] lines = new String[Math.max(0, Math.min(n, all.size()))];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = all.get(i).describe(rate);
+		}
+		return lines;
+	}
+
+	private static int compareLongs(long a, long b) {
+		return a < b ? -1 : a == b ? 0 : 1;
+	}
+}
@@ -0,0 +1,45 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+/**
+ * Management interface of {@link AttributeProfiler}. Reports list the top
+ * attributes, one line each.
+ */
+public interface AttributeProfilerMBean {
+
+	int getSampleRate();
+
+	void setSampleRate(int sampleRate);
+
+	long getSampledSaves();
+
+	String[] topBySize(int n);
+
+	String[] topByChurn(int n);
+
+	String[] topByBytesWritten(int n);
+
+	String[] topBySerializationTime(int n);
+
+	void resetStatistics();
+}
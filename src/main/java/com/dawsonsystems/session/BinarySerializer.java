@@ -0,0 +1,35 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.io.IOException;
+
+/**
+ * A serializer that encodes attribute values itself, so the manager can store
+ * them as BSON binary instead of JSON strings.
+ */
+public interface BinarySerializer extends Serializer {
+
+  byte[] encode(Object value) throws IOException;
+
+  Object decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException;
+}
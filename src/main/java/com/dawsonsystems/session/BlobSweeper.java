@@ -0,0 +1,185 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes attribute blobs no session refers to any more, those of replaced
+ * or removed attributes and of expired sessions, for the whole cluster
+ * while holding the blobs lease. Runs whether or not expiryScan is on, as
+ * sessions removed by the TTL index leave their blobs behind too.
+ */
+final class BlobSweeper {
+
+	/**
+	 * The sessions of the manager the sweeper works for.
+	 */
+	interface Sessions {
+		List<DBCollection> collections();
+
+		/**
+		 * The ids the given sessions may be stored under.
+		 */
+		List<Object> storedIds(Collection<String> ids);
+
+		AttributeBlobStore blobStore();
+	}
+
+	private static final Logger log = Logger.getLogger("MongoManager");
+	// Age below which an unreferenced attribute blob is not swept, as the
+	// session document referring to it may still be on its way
+	private static final long GRACE_MILLIS = 10 * 60 * 1000;
+
+	private final Sessions sessions;
+	private final SweepLease lease;
+	private final long leaseMillis;
+	private final int pageSize;
+
+	/**
+	 * Creates a sweeper that runs at most every intervalSeconds, checking
+	 * the blobs of pageSize sessions at a time.
+	 */
+	BlobSweeper(Sessions sessions, SweepLease lease, int intervalSeconds,
+			int pageSize) {
+		this.sessions = sessions;
+		this.lease = lease;
+		this.leaseMillis = intervalSeconds * 1000L;
+		this.pageSize = pageSize;
+	}
+
+	void process() {
+		try {
+			if (lease.acquire(leaseMillis)) {
+				sweep();
+			}
+		} catch (MongoException e) {
+			log.log(Level.SEVERE, "Error removing unused attribute blobs", e);
+		}
+	}
+
+	/**
+	 * Blobs past their grace period are found through the uploadDate index
+	 * and checked a page of sessions at a time against the documents of
+	 * their sessions.
+	 */
+	private void sweep() {
+		AttributeBlobStore store = sessions.blobStore();
+		BasicDBObject query = new BasicDBObject("uploadDate",
+				new BasicDBObject("$lt", new Date(System.currentTimeMillis()
+						- GRACE_MILLIS)));
+		DBCursor files = store.getFiles()
+				.find(query, new BasicDBObject("metadata.session", 1))
+				.batchSize(pageSize);
+		Map<String, List<Object>> page = new HashMap<String, List<Object>>();
+		int removed = 0;
+		try {
+			while (files.hasNext()) {
+				DBObject file = files.next();
+				DBObject metadata = (DBObject) file.get("metadata");
+				String session = metadata == null ? null : (String) metadata
+						.get("session");
+				List<Object> blobs = page.get(session);
+				if (blobs == null) {
+					blobs = new ArrayList<Object>();
+					page.put(session, blobs);
+				}
+				blobs.add(file.get("_id"));
+				if (page.size() >= pageSize) {
+					removed += sweep(store, page);
+					page.clear();
+					if (!lease.renew(leaseMillis)) {
+						log.warning("Lost the attribute blob sweep lease, "
+								+ "stopping");
+						return;
+					}
+				}
+			}
+			removed += sweep(store, page);
+		} finally {
+			files.close();
+		}
+		if (removed > 0 && log.isLoggable(Level.FINE)) {
+			log.fine("Removed " + removed + " unused attribute blobs");
+		}
+	}
+
+	private int sweep(AttributeBlobStore store,
+			Map<String, List<Object>> blobsBySession) {
+		if (blobsBySession.isEmpty()) {
+			return 0;
+		}
+		Set<Object> referenced = new HashSet<Object>();
+		BasicDBObject query = new BasicDBObject("_id", new BasicDBObject(
+				"$in", sessions.storedIds(blobsBySession.keySet())));
+		BasicDBObject fields = new BasicDBObject(DocumentSchema.LONG.attrs, 1);
+		fields.put(DocumentSchema.COMPACT.attrs, 1);
+		for (DBCollection collection : sessions.collections()) {
+			DBCursor cursor = collection.find(query, fields);
+			try {
+				while (cursor.hasNext()) {
+					DBObject document = cursor.next();
+					DBObject attrs = (DBObject) document.get(DocumentSchema
+							.of(document).attrs);
+					if (attrs == null) {
+						continue;
+					}
+					for (String field : attrs.keySet()) {
+						Object stored = attrs.get(field);
+						if (AttributeBlobStore.isReference(stored)) {
+							referenced.add(((DBObject) stored).get("blob"));
+						}
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		List<Object> unused = new ArrayList<Object>();
+		for (List<Object> blobs : blobsBySession.values()) {
+			for (Object blob : blobs) {
+				if (!referenced.contains(blob)) {
+					unused.add(blob);
+				}
+			}
+		}
+		if (!unused.isEmpty()) {
+			store.remove(unused);
+		}
+		return unused.size();
+	}
+}
@@ -0,0 +1,89 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops calls to Mongo after failureThreshold consecutive calls failed or
+ * took longer than slowCallMillis, so requests fail fast rather than wait
+ * out socket timeouts. After openMillis a single trial call is let through,
+ * and the circuit closes again if it succeeds.
+ */
+final class CircuitBreaker {
+	private final int failureThreshold;
+	private final long slowCallNanos;
+	private final long openMillis;
+	private final Clock clock;
+
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicBoolean trial = new AtomicBoolean();
+	// When the circuit opened, 0 while it is closed
+	private volatile long openedAt;
+
+	CircuitBreaker(int failureThreshold, long slowCallMillis, long openMillis,
+			Clock clock) {
+		this.failureThreshold = failureThreshold;
+		this.slowCallNanos = slowCallMillis > 0 ? slowCallMillis * 1000000
+				: Long.MAX_VALUE;
+		this.openMillis = openMillis;
+		this.clock = clock;
+	}
+
+	/**
+	 * Whether a call may go to Mongo. While open, only the first caller after
+	 * openMillis gets through, as the trial.
+	 */
+	boolean allow() {
+		long opened = openedAt;
+		if (opened == 0) {
+			return true;
+		}
+		return clock.millis() - opened >= openMillis
+				&& trial.compareAndSet(false, true);
+	}
+
+	/**
+	 * Records the outcome of a call that started at the given
+	 * System.nanoTime().
+	 */
+	void record(long startNanos, boolean failed) {
+		if (failed || System.nanoTime() - startNanos > slowCallNanos) {
+			if (trial.get() || failures.incrementAndGet() >= failureThreshold) {
+				openedAt = clock.millis();
+				trial.set(false);
+			}
+			return;
+		}
+		failures.set(0);
+		if (openedAt != 0) {
+			openedAt = 0;
+			trial.set(false);
+		}
+	}
+
+	boolean isOpen() {
+		return openedAt != 0;
+	}
+}
@@ -0,0 +1,188 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.alibaba.fastjson.JSON;
+
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wraps another serializer and deflates encoded values larger than a
+ * threshold. Compressed payloads start with a header holding a magic byte,
+ * the codec and the uncompressed length; smaller payloads are stored exactly
+ * as the wrapped serializer produced them, so documents written without
+ * compression still load. Serializers that only produce attribute maps are
+ * encoded as JSON, like the manager stores them.
+ */
+public class CompressingSerializer implements BinarySerializer {
+
+	private static final byte MAGIC = 'Z';
+	private static final byte DEFLATE = 1;
+	private static final int HEADER_LENGTH = 6;
+	// Largest decompression buffer kept per thread between calls
+	private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[8192];
+		}
+	};
+
+	private final Serializer delegate;
+	private final int threshold;
+
+	public CompressingSerializer() {
+		this(new TypedBinarySerializer(), 1024);
+	}
+
+	public CompressingSerializer(Serializer delegate, int threshold) {
+		this.delegate = delegate;
+		this.threshold = threshold;
+	}
+
+	public Serializer getDelegate() {
+		return delegate;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public Map<Object, Object> serializeFrom(HttpSession session)
+			throws IOException {
+		return delegate.serializeFrom(session);
+	}
+
+	public HttpSession deserializeInto(Map<Object, Object> data,
+			HttpSession session) throws IOException, ClassNotFoundException {
+		return delegate.deserializeInto(data, session);
+	}
+
+	public byte[] encode(Object value) throws IOException {
+		byte[] raw = delegate instanceof BinarySerializer ? ((BinarySerializer) delegate)
+				.encode(value) : JSON.toJSONString(value).getBytes(UTF8);
+		if (raw.length < threshold) {
+			return raw;
+		}
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+
+		byte[] out = new byte[HEADER_LENGTH + raw.length];
+		out[0] = MAGIC;
+		out[1] = DEFLATE;
+		writeInt(out, 2, raw.length);
+		int length = HEADER_LENGTH;
+		while (!deflater.finished() && length < out.length) {
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		if (!deflater.finished()) {
+			// Incompressible, storing it as is is smaller
+			return raw;
+		}
+		return Arrays.copyOf(out, length);
+	}
+
+	public Object decode(byte[] data, int offset, int length)
+			throws IOException, ClassNotFoundException {
+		if (length < HEADER_LENGTH || data[offset] != MAGIC) {
+			return decodeRaw(data, offset, length);
+		}
+		if (data[offset + 1] != DEFLATE) {
+			throw new IOException("Unknown session compression codec "
+					+ data[offset + 1]);
+		}
+
+		int rawLength = readInt(data, offset + 2);
+		byte[] buffer = buffers.get();
+		if (buffer.length < rawLength) {
+			buffer = new byte[rawLength];
+			if (rawLength <= MAX_RETAINED_BUFFER) {
+				buffers.set(buffer);
+			}
+		}
+
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(data, offset + HEADER_LENGTH, length - HEADER_LENGTH);
+		try {
+			int inflated = 0;
+			while (inflated < rawLength && !inflater.finished()) {
+				int n = inflater.inflate(buffer, inflated, rawLength - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != rawLength) {
+				throw new IOException("Truncated compressed session payload");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed session payload", e);
+		}
+		return decodeRaw(buffer, 0, rawLength);
+	}
+
+	private Object decodeRaw(byte[] data, int offset, int length)
+			throws IOException, ClassNotFoundException {
+		if (delegate instanceof BinarySerializer) {
+			return ((BinarySerializer) delegate).decode(data, offset, length);
+		}
+		return JSON.parse(new String(data, offset, length, UTF8));
+	}
+
+	private static void writeInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24)
+				| ((bytes[offset + 1] & 0xFF) << 16)
+				| ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+}
@@ -0,0 +1,152 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Field names and value forms of a session document. The long schema is
+ * the original one. The compact schema stores ObjectId session ids as
+ * native 12 byte ids and uses one or two letter field names, which
+ * shrinks documents and the _id index. Both keep the creation and access
+ * times as long milliseconds, and expireAt as a date for the TTL index.
+ */
+final class DocumentSchema {
+	static final DocumentSchema LONG = new DocumentSchema(false,
+			"lastmodified", "maxinactive", "expireAt", "created", "size",
+			"version", "data", "attrs", "principal", "key_");
+	static final DocumentSchema COMPACT = new DocumentSchema(true, "m", "i",
+			"e", "c", "s", "v", "d", "a", "p", "k_");
+
+	final boolean compact;
+	final String lastModified;
+	final String maxInactive;
+	final String expireAt;
+	final String created;
+	final String size;
+	final String version;
+	final String data;
+	final String attrs;
+	final String principal;
+	final String keyPrefix;
+
+	private DocumentSchema(boolean compact, String lastModified,
+			String maxInactive, String expireAt, String created, String size,
+			String version, String data, String attrs, String principal,
+			String keyPrefix) {
+		this.compact = compact;
+		this.lastModified = lastModified;
+		this.maxInactive = maxInactive;
+		this.expireAt = expireAt;
+		this.created = created;
+		this.size = size;
+		this.version = version;
+		this.data = data;
+		this.attrs = attrs;
+		this.principal = principal;
+		this.keyPrefix = keyPrefix;
+	}
+
+	/**
+	 * Returns the schema a stored document, or the fields fetched of it,
+	 * were written in. No field name is shared between the two.
+	 */
+	static DocumentSchema of(DBObject document) {
+		return document.containsField(COMPACT.version)
+				|| document.containsField(COMPACT.lastModified)
+				|| document.containsField(COMPACT.attrs)
+				|| document.containsField(COMPACT.data)
+				|| document.containsField(COMPACT.created) ? COMPACT : LONG;
+	}
+
+	/**
+	 * The _id a session is stored under.
+	 */
+	Object id(String sessionId) {
+		if (compact && ObjectId.isValid(sessionId)) {
+			return new ObjectId(sessionId);
+		}
+		return sessionId;
+	}
+
+	static String sessionId(Object id) {
+		return id.toString();
+	}
+
+	Object time(long millis) {
+		return millis;
+	}
+
+	/**
+	 * Reads a stored time. Compact documents written before times were kept
+	 * in milliseconds hold int seconds.
+	 */
+	long millis(Object time) {
+		if (time == null) {
+			return 0;
+		}
+		long value = ((Number) time).longValue();
+		return compact && time instanceof Integer ? value * 1000 : value;
+	}
+
+	/**
+	 * Rewrites a document of the long schema in this one, under the given
+	 * id.
+	 */
+	DBObject convert(DBObject document, Object id) {
+		DocumentSchema from = of(document);
+		BasicDBObject converted = new BasicDBObject("_id", id);
+		for (String field : document.keySet()) {
+			Object value = document.get(field);
+			if (field.equals("_id")) {
+				continue;
+			} else if (field.equals(from.lastModified)) {
+				converted.put(lastModified, time(from.millis(value)));
+			} else if (field.equals(from.created)) {
+				converted.put(created, time(from.millis(value)));
+			} else if (field.equals(from.maxInactive)) {
+				converted.put(maxInactive, value);
+			} else if (field.equals(from.expireAt)) {
+				converted.put(expireAt, value);
+			} else if (field.equals(from.size)) {
+				converted.put(size, value);
+			} else if (field.equals(from.version)) {
+				converted.put(version, value);
+			} else if (field.equals(from.data)) {
+				converted.put(data, value);
+			} else if (field.equals(from.attrs)) {
+				converted.put(attrs, value);
+			} else if (field.equals(from.principal)) {
+				converted.put(principal, value);
+			} else if (field.startsWith(from.keyPrefix)) {
+				converted.put(keyPrefix
+						+ field.substring(from.keyPrefix.length()), value);
+			} else {
+				converted.put(field, value);
+			}
+		}
+		return converted;
+	}
+}
@@ -0,0 +1,392 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes expired sessions from backgroundProcess. Without a lease every
+ * node removes them with one remove per collection. With one, only the node
+ * holding it sweeps for the cluster, a page of sessions at a time, and
+ * tells listeners about the sessions it removed. Sessions expired by key
+ * are removed and notified a page at a time as well.
+ */
+final class ExpirySweeper {
+
+	/**
+	 * The sessions of the manager the sweeper works for.
+	 */
+	interface Sessions {
+		List<DBCollection> collections();
+
+		/**
+		 * Whether documents of the long schema may be left while the compact
+		 * schema is written.
+		 */
+		boolean hasLongDocuments();
+
+		int maxInactiveInterval();
+
+		/**
+		 * Drops what this node holds of a session removed from Mongo.
+		 */
+		void forget(String id);
+
+		/**
+		 * Tells listeners about a removed session, given its document.
+		 */
+		void expired(DBObject document) throws Exception;
+	}
+
+	private static final Logger log = Logger.getLogger("MongoManager");
+
+	private final Sessions sessions;
+	private final DocumentSchema schema;
+	private final WriteConcern removeConcern;
+	private final SessionStoreMetrics metrics;
+	// Null if every node removes expired sessions itself
+	private final SweepLease lease;
+	private final long leaseMillis;
+	private final int pageSize;
+	private final boolean notifyListeners;
+	// Null if listeners are told one session after the other
+	private final ExecutorService listeners;
+
+	/**
+	 * Creates a sweeper that removes expired sessions for the cluster while
+	 * it holds the lease, at most every intervalSeconds, or on every node if
+	 * the lease is null. Sessions are removed pageSize at a time. With the
+	 * lease, listeners are told on listenerThreads threads named threadName;
+	 * with no listener threads they are not told at all.
+	 */
+	ExpirySweeper(Sessions sessions, DocumentSchema schema,
+			WriteConcern removeConcern, SessionStoreMetrics metrics,
+			SweepLease lease, int intervalSeconds, int pageSize,
+			int listenerThreads, final String threadName) {
+		this.sessions = sessions;
+		this.schema = schema;
+		this.removeConcern = removeConcern;
+		this.metrics = metrics;
+		this.lease = lease;
+		this.leaseMillis = intervalSeconds * 1000L;
+		this.pageSize = pageSize;
+		this.notifyListeners = listenerThreads > 0;
+		this.listeners = lease == null || listenerThreads <= 0 ? null
+				: Executors.newFixedThreadPool(listenerThreads,
+						new ThreadFactory() {
+							public Thread newThread(Runnable runnable) {
+								Thread thread = new Thread(runnable, threadName);
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+	}
+
+	void stop() {
+		if (listeners != null) {
+			listeners.shutdown();
+		}
+	}
+
+	void process() {
+		if (lease != null) {
+			try {
+				if (lease.acquire(leaseMillis)) {
+					sweep();
+				}
+			} catch (MongoException e) {
+				log.log(Level.SEVERE, "Error taking the expiry sweep lease", e);
+			}
+			return;
+		}
+		BasicDBObject query = expiredQuery();
+
+		long start = System.nanoTime();
+		boolean failed = false;
+		for (DBCollection collection : sessions.collections()) {
+			try {
+				WriteResult result = collection.remove(query, removeConcern);
+				if (removeConcern.callGetLastError()) {
+					metrics.expired(result.getN());
+					if (log.isLoggable(Level.FINE)) {
+						log.fine("Expired sessions in "
+								+ collection.getFullName() + " : "
+								+ result.getN());
+					}
+				}
+			} catch (MongoException e) {
+				failed = true;
+				log.log(Level.SEVERE,
+						"Error cleaning session in Mongo Session Store", e);
+			}
+		}
+		metrics.record(SessionStoreMetrics.Operation.EXPIRE_SCAN, start,
+				failed);
+	}
+
+	/**
+	 * Matches sessions that have expired. Sessions written before expireAt
+	 * existed fall back to the manager's timeout. With the compact schema
+	 * documents of the long schema are matched as well while any are left.
+	 */
+	private BasicDBObject expiredQuery() {
+		BasicDBObject compact = new BasicDBObject(schema.expireAt,
+				new BasicDBObject("$lt", new Date()));
+		if (schema.compact && !sessions.hasLongDocuments()) {
+			return compact;
+		}
+		long olderThan = System.currentTimeMillis()
+				- (sessions.maxInactiveInterval() * 1000);
+
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Looking for sessions less than for expiry in Mongo : "
+					+ olderThan);
+		}
+
+		BasicDBObject legacy = new BasicDBObject();
+		legacy.put("expireAt", new BasicDBObject("$exists", false));
+		legacy.put("maxinactive", new BasicDBObject("$exists", false));
+		legacy.put("lastmodified", new BasicDBObject("$lt", olderThan));
+		BasicDBList or = new BasicDBList();
+		or.add(new BasicDBObject("expireAt", new BasicDBObject("$lt",
+				new Date())));
+		or.add(legacy);
+		if (schema.compact) {
+			or.add(compact);
+		}
+		return new BasicDBObject("$or", or);
+	}
+
+	/**
+	 * Expires sessions for the whole cluster while holding the sweep lease.
+	 * Expired sessions are streamed a page at a time, each page is removed
+	 * with one $in remove that checks expiry again, and listeners are told
+	 * about the sessions actually removed.
+	 */
+	private void sweep() {
+		DBObject fields = notifyListeners ? null : new BasicDBObject("_id", 1);
+		long start = System.nanoTime();
+		boolean failed = false;
+		int expired = 0;
+		try {
+			for (DBCollection collection : sessions.collections()) {
+				DBCursor cursor = collection.find(expiredQuery(), fields)
+						.batchSize(pageSize);
+				List<DBObject> page = new ArrayList<DBObject>();
+				try {
+					while (cursor.hasNext()) {
+						page.add(cursor.next());
+						if (page.size() < pageSize) {
+							continue;
+						}
+						expired += expirePage(collection, page, expiredQuery());
+						page.clear();
+						if (!lease.renew(leaseMillis)) {
+							log.warning("Lost the expiry sweep lease, stopping");
+							return;
+						}
+					}
+					expired += expirePage(collection, page, expiredQuery());
+				} finally {
+					cursor.close();
+				}
+			}
+		} catch (MongoException e) {
+			failed = true;
+			log.log(Level.SEVERE, "Error sweeping expired sessions", e);
+		} finally {
+			metrics.expired(expired);
+			metrics.record(SessionStoreMetrics.Operation.EXPIRE_SCAN, start,
+					failed);
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Swept " + expired + " expired sessions");
+			}
+		}
+	}
+
+	/**
+	 * Removes a page of sessions with one $in remove, checking they still
+	 * match the query that found them, and tells listeners about the ones
+	 * removed. Returns the number removed.
+	 */
+	private int expirePage(DBCollection collection, List<DBObject> page,
+			BasicDBObject condition) {
+		if (page.isEmpty()) {
+			return 0;
+		}
+		Set<Object> ids = new HashSet<Object>();
+		for (DBObject document : page) {
+			ids.add(document.get("_id"));
+		}
+		BasicDBObject query = new BasicDBObject(condition);
+		query.put("_id", new BasicDBObject("$in", new ArrayList<Object>(ids)));
+		WriteResult result = collection.remove(query, removeConcern);
+		if (!removeConcern.callGetLastError() || result.getN() < ids.size()) {
+			// Some were used again since the page was read
+			DBCursor kept = collection.find(new BasicDBObject("_id",
+					new BasicDBObject("$in", new ArrayList<Object>(ids))),
+					new BasicDBObject("_id", 1));
+			try {
+				while (kept.hasNext()) {
+					ids.remove(kept.next().get("_id"));
+				}
+			} finally {
+				kept.close();
+			}
+		}
+		for (Object id : ids) {
+			sessions.forget(DocumentSchema.sessionId(id));
+		}
+		if (notifyListeners) {
+			notifyExpired(page, ids);
+		}
+		return ids.size();
+	}
+
+	/**
+	 * Removes every session matching a query, a page at a time, and tells
+	 * listeners about them. Returns the number removed.
+	 */
+	int expire(BasicDBObject query) {
+		DBObject fields = notifyListeners ? null : new BasicDBObject("_id", 1);
+		int removed = 0;
+		for (DBCollection collection : sessions.collections()) {
+			DBCursor cursor = collection.find(query, fields).batchSize(
+					pageSize);
+			List<DBObject> page = new ArrayList<DBObject>();
+			try {
+				while (cursor.hasNext()) {
+					page.add(cursor.next());
+					if (page.size() >= pageSize) {
+						removed += expirePage(collection, page, query);
+						page.clear();
+					}
+				}
+				removed += expirePage(collection, page, query);
+			} finally {
+				cursor.close();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Tells listeners about removed sessions, several sessions at a time, or
+	 * one after the other if there is no sweep lease.
+	 */
+	private void notifyExpired(List<DBObject> page, Set<Object> removed) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final DBObject document : page) {
+			if (!removed.contains(document.get("_id"))) {
+				continue;
+			}
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					sessions.expired(document);
+					return null;
+				}
+			});
+		}
+		if (listeners == null) {
+			for (Callable<Void> task : tasks) {
+				try {
+					task.call();
+				} catch (Exception e) {
+					log.log(Level.WARNING,
+							"Error telling listeners about an expired session",
+							e);
+				}
+			}
+			return;
+		}
+		try {
+			for (Future<Void> task : listeners.invokeAll(tasks)) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					log.log(Level.WARNING,
+							"Error telling listeners about an expired session",
+							e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Creates the expireAt TTL index, or changes its expireAfterSeconds with
+	 * collMod if it exists with another, since an index cannot be created
+	 * again with different options.
+	 */
+	static void ensureExpiryIndex(DBCollection collection, String expireAt,
+			int grace) {
+		BasicDBObject keys = new BasicDBObject(expireAt, 1);
+		for (DBObject index : collection.getIndexInfo()) {
+			if (!keys.equals(index.get("key"))) {
+				continue;
+			}
+			Number current = (Number) index.get("expireAfterSeconds");
+			if (current == null || current.intValue() != grace) {
+				BasicDBObject modify = new BasicDBObject("keyPattern", keys);
+				modify.put("expireAfterSeconds", grace);
+				BasicDBObject command = new BasicDBObject("collMod",
+						collection.getName());
+				command.put("index", modify);
+				CommandResult result = collection.getDB().command(command);
+				if (result.ok()) {
+					log.info("Changed the TTL of " + collection.getFullName()
+							+ " expireAt index to " + grace + " seconds");
+				} else {
+					log.warning("Unable to change the TTL of "
+							+ collection.getFullName() + " expireAt index to "
+							+ grace + " seconds: " + result.getErrorMessage());
+				}
+			}
+			return;
+		}
+		collection.ensureIndex(keys, new BasicDBObject("expireAfterSeconds",
+				grace));
+	}
+}
@@ -0,0 +1,91 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Session writes that could not reach Mongo, kept in memory until they can
+ * be reconciled. Loads consult it before Mongo, so a node keeps serving the
+ * latest state of its sessions during an outage. Bounded, the oldest
+ * session's changes are dropped when full.
+ */
+class FallbackStore {
+	private static Logger log = Logger.getLogger("MongoManager");
+
+	private final Map<String, SessionWrite> writes;
+
+	FallbackStore(final int maxSize) {
+		this.writes = new LinkedHashMap<String, SessionWrite>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, SessionWrite> eldest) {
+				if (size() > maxSize) {
+					log.warning("Fallback session store full, dropping changes of session "
+							+ eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Adds a write, merged into any earlier one for the same session.
+	 */
+	synchronized void put(SessionWrite write) {
+		SessionWrite earlier = writes.get(write.getId());
+		writes.put(write.getId(), earlier == null ? write : earlier
+				.merge(write));
+	}
+
+	synchronized SessionWrite get(String id) {
+		return writes.get(id);
+	}
+
+	synchronized boolean isEmpty() {
+		return writes.isEmpty();
+	}
+
+	synchronized int size() {
+		return writes.size();
+	}
+
+	synchronized List<SessionWrite> snapshot() {
+		return new ArrayList<SessionWrite>(writes.values());
+	}
+
+	/**
+	 * Drops a reconciled write, unless the session was written again since.
+	 */
+	synchronized void written(SessionWrite write) {
+		if (writes.get(write.getId()) == write) {
+			writes.remove(write.getId());
+		}
+	}
+}
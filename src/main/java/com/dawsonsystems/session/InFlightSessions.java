@@ -0,0 +1,79 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import org.apache.catalina.session.StandardSession;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The sessions requests are using, by id, counted by request rather than
+ * held per thread. A session loaded by a request stays here until the last
+ * request for it ends, whichever threads those requests ran on, so async
+ * dispatches and virtual threads see the same session object.
+ */
+final class InFlightSessions {
+
+	private static final class Entry {
+		int requests;
+		StandardSession session;
+	}
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * Counts a request for a session in, returning true if no other request
+	 * is using it.
+	 */
+	synchronized boolean acquire(String id) {
+		Entry entry = entries.get(id);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(id, entry);
+		}
+		return ++entry.requests == 1;
+	}
+
+	synchronized void release(String id) {
+		Entry entry = entries.get(id);
+		if (entry != null && --entry.requests <= 0) {
+			entries.remove(id);
+		}
+	}
+
+	synchronized StandardSession get(String id) {
+		Entry entry = entries.get(id);
+		return entry == null ? null : entry.session;
+	}
+
+	/**
+	 * Keeps a loaded session for the other loads of the requests using it.
+	 * Sessions no request has acquired are not kept.
+	 */
+	synchronized void put(String id, StandardSession session) {
+		Entry entry = entries.get(id);
+		if (entry != null) {
+			entry.session = session;
+		}
+	}
+}
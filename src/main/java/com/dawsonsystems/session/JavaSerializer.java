@@ -31,6 +31,10 @@ public class JavaSerializer implements Serializer {
 
 	public Map<Object, Object> serializeFrom(HttpSession session)
 			throws IOException {
+		if (session instanceof MongoSession) {
+			// Leaves attributes nobody read in their stored form
+			return ((MongoSession) session).getAttributeSnapshot();
+		}
 		Map<Object, Object> map = new HashMap<Object, Object>();
 		Enumeration<String> names = session.getAttributeNames();
 		while (names.hasMoreElements()) {
@@ -46,7 +50,12 @@ public class JavaSerializer implements Serializer {
 		MongoSession standardSession = (MongoSession) session;
 		Set<Object> keys = data.keySet();
         for(Object key:keys){
-        	standardSession.setAttribute((String) key, data.get(key));
+        	Object value = data.get(key);
+        	if (value instanceof EncodedAttribute) {
+        		standardSession.setEncodedAttribute((String) key, (EncodedAttribute) value);
+        	} else {
+        		standardSession.setAttribute((String) key, value);
+        	}
         }
 		return session;
 	}
@@ -0,0 +1,121 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with logarithmic buckets, each power of two split into
+ * eight, so percentiles are reported within 12.5% of the true value.
+ * Recording increments one counter in the calling thread's stripe and
+ * allocates nothing.
+ */
+final class LatencyHistogram {
+	private static final int STRIPES = stripes();
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(
+			STRIPES * BUCKETS);
+
+	void record(long nanos) {
+		counts.incrementAndGet(stripe() * BUCKETS
+				+ bucket(Math.max(0, nanos)));
+	}
+
+	long count() {
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the upper bound in nanoseconds of the bucket holding the given
+	 * quantile, or 0 if nothing has been recorded.
+	 */
+	long percentile(double quantile) {
+		long[] totals = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			long n = counts.get(i);
+			totals[i % BUCKETS] += n;
+			count += n;
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += totals[b];
+			if (seen >= rank) {
+				return upperBound(b);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+		long width = 1L << (exponent - SUB_BITS);
+		long lower = (1L << exponent) + (bucket & (SUB_BUCKETS - 1)) * width;
+		return lower + width - 1;
+	}
+
+	/**
+	 * The stripe of the current thread. Thread ids are handed out in
+	 * sequence, so consecutive request threads land in different stripes.
+	 */
+	private static int stripe() {
+		return (int) Thread.currentThread().getId() & (STRIPES - 1);
+	}
+
+	private static int stripes() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while (stripes < processors && stripes < 16) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+}
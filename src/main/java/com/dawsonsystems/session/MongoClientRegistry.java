@@ -0,0 +1,109 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.mongodb.Mongo;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * JVM wide registry of MongoClients, so every context connecting to the same
+ * servers with the same options shares one connection pool. Clients are
+ * reference counted and closed when the last manager using them stops.
+ */
+public final class MongoClientRegistry {
+	private static Logger log = Logger.getLogger("MongoClientRegistry");
+
+	private static final Map<Key, Shared> clients = new HashMap<Key, Shared>();
+
+	private MongoClientRegistry() {
+	}
+
+	public static synchronized MongoClient acquire(List<ServerAddress> addrs,
+			MongoClientOptions options) {
+		Key key = new Key(addrs, options);
+		Shared shared = clients.get(key);
+		if (shared == null) {
+			shared = new Shared(new MongoClient(addrs, options));
+			clients.put(key, shared);
+			log.info("Opened Mongo client for " + addrs);
+		}
+		shared.references++;
+		return shared.client;
+	}
+
+	public static synchronized void release(Mongo client) {
+		for (Map.Entry<Key, Shared> entry : clients.entrySet()) {
+			Shared shared = entry.getValue();
+			if (shared.client == client) {
+				if (--shared.references == 0) {
+					clients.remove(entry.getKey());
+					client.close();
+					log.info("Closed Mongo client for " + entry.getKey().addrs);
+				}
+				return;
+			}
+		}
+		// Not one of ours
+		client.close();
+	}
+
+	private static final class Shared {
+		private final MongoClient client;
+		private int references;
+
+		Shared(MongoClient client) {
+			this.client = client;
+		}
+	}
+
+	private static final class Key {
+		private final List<ServerAddress> addrs;
+		private final MongoClientOptions options;
+
+		Key(List<ServerAddress> addrs, MongoClientOptions options) {
+			this.addrs = new ArrayList<ServerAddress>(addrs);
+			this.options = options;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return addrs.equals(other.addrs) && options.equals(other.options);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * addrs.hashCode() + options.hashCode();
+		}
+	}
+}
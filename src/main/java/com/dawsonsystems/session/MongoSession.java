@@ -20,17 +20,56 @@
 
 package com.dawsonsystems.session;
 
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import org.apache.catalina.Context;
 import org.apache.catalina.Manager;
 import org.apache.catalina.session.StandardSession;
 
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 public class MongoSession extends StandardSession {
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = 4364215696815910704L;
+	private static final Logger log = Logger.getLogger("MongoManager");
 	
 	private boolean isValid = true;
 
+	// Attributes set or removed through the session API since the last load or save
+	private transient Set<String> changedAttributes = newNameSet();
+	private transient Set<String> removedAttributes = newNameSet();
+	// Content hashes of mutable attribute values as of the last load or save
+	private transient Map<String, Integer> attributeHashes = Collections.emptyMap();
+	// Whether a document for this session exists in Mongo that can be updated in place
+	private transient boolean stored;
+	// Version of the Mongo document this session was read from or last written as
+	private transient long version;
+	// Timeout held in Mongo, a change is written like an attribute change
+	private transient int storedMaxInactiveInterval;
+	// lastmodified held in Mongo, 0 if not known
+	private transient long storedAccessTime;
+	// Principal name last indexed for this session by this node
+	private transient String storedPrincipal;
+	// Attributes loaded from Mongo that have not been decoded yet
+	private transient Map<String, EncodedAttribute> encodedAttributes = new ConcurrentHashMap<String, EncodedAttribute>();
+	// GridFS references of offloaded attributes decoded and not set or
+	// removed since, so a full write keeps them rather than uploading again
+	private transient Map<String, DBObject> blobReferences = new ConcurrentHashMap<String, DBObject>();
+
 	public MongoSession(Manager manager) {
 		super(manager);
 	}
@@ -63,8 +102,265 @@ public class MongoSession extends StandardSession {
 		setValid(false);
 	}
 
+	@Override
+	public void expire(boolean notify) {
+		if (!isValid) {
+			return;
+		}
+		if (notify) {
+			fireExpired();
+		}
+		setValid(false);
+	}
+
+	/**
+	 * Tells session listeners the session is being destroyed and unbinds its
+	 * attributes with notification, as StandardSession.expire does, without
+	 * removing it from the store.
+	 */
+	void fireExpired() {
+		Context context = manager.getContext();
+		Thread thread = Thread.currentThread();
+		ClassLoader original = thread.getContextClassLoader();
+		if (context.getLoader() != null) {
+			thread.setContextClassLoader(context.getLoader().getClassLoader());
+		}
+		try {
+			Object[] listeners = context.getApplicationLifecycleListeners();
+			if (listeners != null && listeners.length > 0) {
+				HttpSessionEvent event = new HttpSessionEvent(getSession());
+				// Reverse order of declaration, like Tomcat
+				for (int i = listeners.length - 1; i >= 0; i--) {
+					if (!(listeners[i] instanceof HttpSessionListener)) {
+						continue;
+					}
+					HttpSessionListener listener = (HttpSessionListener) listeners[i];
+					context.fireContainerEvent("beforeSessionDestroyed",
+							listener);
+					try {
+						listener.sessionDestroyed(event);
+					} catch (RuntimeException e) {
+						log.log(Level.SEVERE, "Session listener failed for "
+								+ id, e);
+					} finally {
+						context.fireContainerEvent("afterSessionDestroyed",
+								listener);
+					}
+				}
+			}
+			for (String key : keys()) {
+				removeAttributeInternal(key, true);
+			}
+		} finally {
+			thread.setContextClassLoader(original);
+		}
+	}
+
 	@Override
 	public void setId(String id) {
 		this.id = id;
 	}
+
+	@Override
+	public Object getAttribute(String name) {
+		if (name != null && encodedAttributes.containsKey(name)
+				&& isValidInternal()) {
+			decodeAttribute(name);
+		}
+		return super.getAttribute(name);
+	}
+
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		if (!isValidInternal()) {
+			return super.getAttributeNames();
+		}
+		Set<String> names = new HashSet<String>(attributes.keySet());
+		names.addAll(encodedAttributes.keySet());
+		return Collections.enumeration(names);
+	}
+
+	@Override
+	protected String[] keys() {
+		Set<String> names = new HashSet<String>(attributes.keySet());
+		names.addAll(encodedAttributes.keySet());
+		return names.toArray(new String[names.size()]);
+	}
+
+	@Override
+	public void setAttribute(String name, Object value, boolean notify) {
+		if (name != null && encodedAttributes.containsKey(name)
+				&& !decodeAttribute(name)) {
+			// Listeners are told about the value being replaced, unless it
+			// cannot be read
+			encodedAttributes.remove(name);
+		}
+		if (name != null) {
+			blobReferences.remove(name);
+		}
+		super.setAttribute(name, value, notify);
+		if (value != null) {
+			changedAttributes.add(name);
+			removedAttributes.remove(name);
+		}
+	}
+
+	@Override
+	protected void removeAttributeInternal(String name, boolean notify) {
+		if (name != null) {
+			blobReferences.remove(name);
+		}
+		if (name != null && encodedAttributes.containsKey(name)) {
+			if (!notify || !decodeAttribute(name)) {
+				encodedAttributes.remove(name);
+				removedAttributes.add(name);
+				changedAttributes.remove(name);
+				return;
+			}
+		}
+		if (name != null && attributes.containsKey(name)) {
+			removedAttributes.add(name);
+			changedAttributes.remove(name);
+		}
+		super.removeAttributeInternal(name, notify);
+	}
+
+	/**
+	 * Adds an attribute in its stored form, to be decoded on first access.
+	 */
+	public void setEncodedAttribute(String name, EncodedAttribute value) {
+		attributes.remove(name);
+		encodedAttributes.put(name, value);
+	}
+
+	/**
+	 * Returns the attributes as they would be written back: decoded values
+	 * for attributes that have been accessed, stored forms for the rest.
+	 */
+	public Map<Object, Object> getAttributeSnapshot() {
+		Map<Object, Object> snapshot = new HashMap<Object, Object>(
+				encodedAttributes);
+		snapshot.putAll(attributes);
+		return snapshot;
+	}
+
+	/**
+	 * Decodes an attribute still in its stored form. Returns false, leaving
+	 * it stored, if it is offloaded and Mongo cannot be reached to read it,
+	 * so it reads as missing and is written back as it was.
+	 */
+	private synchronized boolean decodeAttribute(String name) {
+		EncodedAttribute encoded = encodedAttributes.get(name);
+		if (encoded == null) {
+			return true;
+		}
+		MongoSessionManager mongoManager = (MongoSessionManager) manager;
+		try {
+			attributes.put(name, mongoManager.decodeValue(encoded.getStored()));
+		} catch (CircuitOpenException e) {
+			return unavailable(name, e);
+		} catch (MongoException e) {
+			return unavailable(name, e);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to decode attribute "
+					+ name + " of session " + id, e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Unable to decode attribute "
+					+ name + " of session " + id, e);
+		}
+		attributeHashes.put(name, mongoManager.hashEncoded(encoded
+				.getStored()));
+		if (AttributeBlobStore.isReference(encoded.getStored())) {
+			blobReferences.put(name, (DBObject) encoded.getStored());
+		}
+		encodedAttributes.remove(name);
+		return true;
+	}
+
+	private boolean unavailable(String name, Exception e) {
+		log.warning("Attribute " + name + " of session " + id
+				+ " is unavailable: " + e.getMessage());
+		return false;
+	}
+
+	/**
+	 * The GridFS references of offloaded attributes decoded since the last
+	 * load and not set or removed since.
+	 */
+	Map<String, DBObject> getBlobReferences() {
+		return blobReferences;
+	}
+
+	public boolean isDirty() {
+		return !changedAttributes.isEmpty() || !removedAttributes.isEmpty();
+	}
+
+	public Set<String> getChangedAttributes() {
+		return changedAttributes;
+	}
+
+	public Set<String> getRemovedAttributes() {
+		return removedAttributes;
+	}
+
+	public Map<String, Integer> getAttributeHashes() {
+		return attributeHashes;
+	}
+
+	public boolean isStored() {
+		return stored;
+	}
+
+	/**
+	 * Called once the session matches what is held in Mongo, either after a
+	 * load or a save.
+	 */
+	public void markClean(Map<String, Integer> attributeHashes) {
+		this.attributeHashes = new ConcurrentHashMap<String, Integer>(
+				attributeHashes);
+		this.changedAttributes.clear();
+		this.removedAttributes.clear();
+		this.stored = true;
+	}
+
+	public void setStored(boolean stored) {
+		this.stored = stored;
+	}
+
+	public int getStoredMaxInactiveInterval() {
+		return storedMaxInactiveInterval;
+	}
+
+	public void setStoredMaxInactiveInterval(int storedMaxInactiveInterval) {
+		this.storedMaxInactiveInterval = storedMaxInactiveInterval;
+	}
+
+	public long getStoredAccessTime() {
+		return storedAccessTime;
+	}
+
+	public void setStoredAccessTime(long storedAccessTime) {
+		this.storedAccessTime = storedAccessTime;
+	}
+
+	public String getStoredPrincipal() {
+		return storedPrincipal;
+	}
+
+	public void setStoredPrincipal(String storedPrincipal) {
+		this.storedPrincipal = storedPrincipal;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	private static Set<String> newNameSet() {
+		return Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
 }
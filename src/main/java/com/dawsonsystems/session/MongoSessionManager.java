@@ -21,30 +21,46 @@
 package com.dawsonsystems.session;
 
 import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
 import com.alibaba.fastjson.TypeReference;
 import com.mongodb.*;
 
 import org.apache.catalina.*;
 import org.apache.catalina.session.ManagerBase;
 import org.apache.catalina.session.StandardSession;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class MongoSessionManager extends ManagerBase implements Lifecycle {
 	private static Logger log = Logger.getLogger("MongoManager");
-	protected static String host = "localhost";
-	protected static int port = 27017;
-	protected static String database = "sessions";
+	// User defined BSON binary subtype marking encoded session payloads
+	private static final byte PAYLOAD_SUBTYPE = (byte) 0x80;
+	protected String host = "localhost";
+	protected int port = 27017;
+	protected String database = "sessions";
 	protected Mongo mongo;
+	private boolean ownsClient;
 	protected DB db;
 	protected boolean slaveOk;
 
@@ -52,23 +68,155 @@ public class MongoSessionManager extends ManagerBase implements Lifecycle {
 		MongoSessionManager.log = log;
 	}
 
-	public static void setHost(String host) {
-		MongoSessionManager.host = host;
+	public void setHost(String host) {
+		this.host = host;
 	}
 
-	public static void setPort(int port) {
-		MongoSessionManager.port = port;
+	public void setPort(int port) {
+		this.port = port;
 	}
 
-	public static void setDatabase(String database) {
-		MongoSessionManager.database = database;
+	public void setDatabase(String database) {
+		this.database = database;
 	}
 
 	private MongoSessionTrackerValve trackerValve;
 	private ThreadLocal<StandardSession> currentSession = new ThreadLocal<StandardSession>();
+	// Keep the session of a request for the requests using it, counted in and
+	// out by the tracker valve, instead of in a ThreadLocal. Needed for
+	// virtual threads and async dispatch to other threads.
+	private boolean requestScopedTracking = false;
+	private InFlightSessions inFlight;
+	private final SessionStoreMetrics metrics = new SessionStoreMetrics();
+	private ObjectName metricsName;
+	// Profile the attributes of one save in this many, 0 disables. Can be
+	// changed at runtime over JMX.
+	private int profileSampleRate = 0;
+	private final AttributeProfiler profiler = new AttributeProfiler(0);
+	private ObjectName profilerName;
 	private Serializer serializer;
-	// Either 'kryo' or 'java'
+	// Either 'java', which stores JSON, or a BinarySerializer such as
+	// 'com.dawsonsystems.session.TypedBinarySerializer'
 	private String serializationStrategyClass = "com.dawsonsystems.session.JavaSerializer";
+	// Comma separated Externalizable classes for the TypedBinarySerializer
+	// class table, in the same order on every node
+	private String registeredClasses = "";
+	// Encoded values at least this many bytes are deflated, -1 disables
+	private int compressionThreshold = -1;
+	// Store each attribute as its own field and write only what changed
+	private boolean deltaPersistence = false;
+	// Number of sessions kept deserialized on this node, 0 disables the cache
+	private int nearCacheSize = 0;
+	// How long a cached session is used without checking its version in Mongo
+	private long nearCacheTrustMillis = 0;
+	private NearCache nearCache;
+	// Save sessions from a background thread instead of the request thread
+	private boolean writeBehind = false;
+	private int writeBehindQueueSize = 10000;
+	private int writeBehindBatchSize = 100;
+	private long writeBehindFlushMillis = 100;
+	// How long a request waits for room in a full queue before saving itself
+	private long writeBehindOfferMillis = 1000;
+	private WriteBehindQueue writeBehindQueue;
+	// Also remove expired sessions from backgroundProcess, rather than
+	// leaving it all to the expireAt TTL index
+	private boolean expiryScan = true;
+	// Only one node of the cluster scans for expired sessions per this many
+	// seconds, holding a lease document. 0 scans on every node.
+	private int sweepIntervalSeconds = 0;
+	// Expired sessions read and removed per round trip by the leased sweep
+	private int sweepPageSize = 500;
+	// Threads telling session listeners about expired sessions, 0 removes
+	// expired sessions without loading them or notifying listeners. With
+	// listener threads the expireAt TTL index waits two sweep intervals, so
+	// it does not remove sessions before the sweep has notified listeners.
+	private int sweepListenerThreads = 4;
+	private ExpirySweeper expirySweeper;
+	// Store the authenticated principal's name in an indexed field, so the
+	// sessions of a user can be found, counted and expired
+	private boolean indexPrincipal = false;
+	// Comma separated attributes whose values are stored the same way, as
+	// strings in indexed key_<name> fields
+	private String indexedAttributes = "";
+	private Set<String> indexedAttributeNames = Collections.emptySet();
+	// Write documents with ObjectId _ids and short field names. Documents of
+	// the long schema are still read, and converted. Switching needs all
+	// nodes stopped: a node still writing the other schema would not see the
+	// converted document, and the session would fork in two.
+	private boolean compactSchema = false;
+	private DocumentSchema schema = DocumentSchema.LONG;
+	private SchemaMigrator migrator;
+	// Documents fetched per round trip when iterating over stored sessions
+	private int cursorBatchSize = 500;
+	// Spread sessions over this many collections, or databases if stripeMode
+	// is 'database', chosen by a hash of the session id
+	private int stripes = 1;
+	private String stripeMode = "collection";
+	// Stripe count sessions were written with before stripes was changed.
+	// Sessions found there are moved to their new stripe when loaded.
+	private int previousStripes = 0;
+	private DBCollection[] collections;
+	private DBCollection[] previousCollections;
+	// Attribute values larger than this many encoded bytes are kept in GridFS
+	// and only fetched when read. Needs deltaPersistence, -1 disables.
+	private int offloadThreshold = -1;
+	// Only one node of the cluster removes unused attribute blobs per this
+	// many seconds, holding the 'blobs' lease
+	private int blobSweepIntervalSeconds = 600;
+	private BlobSweeper blobSweeper;
+	private volatile AttributeBlobStore blobStore;
+	// Skip writing the access time of an unchanged session while the stored
+	// one is younger than this percentage of its timeout, and batch the rest
+	// into multi-id updates from backgroundProcess. 0 writes every access.
+	private int touchThrottlePercent = 0;
+	// Remaining lifetime below which a throttled touch is written at once,
+	// allowing for the background thread and TTL monitor periods
+	private static final long TOUCH_SAFETY_MILLIS = 2 * 60 * 1000;
+	private TouchTable touchTable;
+	// Fail fast after this many consecutive failed or slow Mongo calls, and
+	// keep sessions in a local fallback store until Mongo is back. 0 disables.
+	private int circuitFailureThreshold = 0;
+	// Calls slower than this count as failed, 0 only counts errors
+	private long circuitSlowCallMillis = 0;
+	// How long the circuit stays open before a trial call is let through
+	private long circuitOpenMillis = 5000;
+	private int fallbackSize = 10000;
+	private CircuitBreaker breaker;
+	// Times the open circuit, replaced by the tests
+	private Clock clock = Clock.systemUTC();
+	private FallbackStore fallbackStore;
+
+	// MongoClientOptions, defaulting to the driver's own defaults
+	private int connectionsPerHost = 100;
+	private int threadsAllowedToBlockForConnectionMultiplier = 5;
+	private int maxWaitTime = 120000;
+	private int connectTimeout = 10000;
+	private int socketTimeout = 0;
+	private boolean socketKeepAlive = false;
+	// Share one client between all contexts with the same servers and options
+	private boolean sharedClient = true;
+
+	// Write concern names per operation, e.g. 'unacknowledged', 'acknowledged',
+	// 'journaled' or 'majority'. Unset uses the client's write concern.
+	private String touchWriteConcern;
+	private String createWriteConcern;
+	private String updateWriteConcern;
+	private String removeWriteConcern;
+	// Read preference name for loads, e.g. 'primary' or 'secondaryPreferred'
+	private String readPreference;
+	// When loads go to secondaries, remember the versions of this many
+	// sessions written here, and read a session from the primary if the
+	// secondary's copy is older. 0 reads whatever the secondary has.
+	private int readYourWritesSize = 10000;
+	// How long a write is remembered, longer than replication is expected
+	// to lag behind
+	private long readYourWritesMillis = 60000;
+	private WrittenVersions writtenVersions;
+	private WriteConcern touchConcern;
+	private WriteConcern createConcern;
+	private WriteConcern updateConcern;
+	private WriteConcern removeConcern;
+	private ReadPreference loadPreference;
 
 	public Context getContext() {
 		return super.getContext();
@@ -98,6 +246,10 @@ public class MongoSessionManager extends ManagerBase implements Lifecycle {
 		this.currentSession = currentSession;
 	}
 
+	public void setRequestScopedTracking(boolean requestScopedTracking) {
+		this.requestScopedTracking = requestScopedTracking;
+	}
+
 	public void setSerializer(Serializer serializer) {
 		this.serializer = serializer;
 	}
@@ -106,6 +258,179 @@ public class MongoSessionManager extends ManagerBase implements Lifecycle {
 		this.serializationStrategyClass = serializationStrategyClass;
 	}
 
+	public void setRegisteredClasses(String registeredClasses) {
+		this.registeredClasses = registeredClasses;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public void setDeltaPersistence(boolean deltaPersistence) {
+		this.deltaPersistence = deltaPersistence;
+	}
+
+	public void setNearCacheSize(int nearCacheSize) {
+		this.nearCacheSize = nearCacheSize;
+	}
+
+	public void setNearCacheTrustMillis(long nearCacheTrustMillis) {
+		this.nearCacheTrustMillis = nearCacheTrustMillis;
+	}
+
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+		this.writeBehindQueueSize = writeBehindQueueSize;
+	}
+
+	public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+		this.writeBehindBatchSize = writeBehindBatchSize;
+	}
+
+	public void setWriteBehindFlushMillis(long writeBehindFlushMillis) {
+		this.writeBehindFlushMillis = writeBehindFlushMillis;
+	}
+
+	public void setWriteBehindOfferMillis(long writeBehindOfferMillis) {
+		this.writeBehindOfferMillis = writeBehindOfferMillis;
+	}
+
+	public void setExpiryScan(boolean expiryScan) {
+		this.expiryScan = expiryScan;
+	}
+
+	public void setSweepIntervalSeconds(int sweepIntervalSeconds) {
+		this.sweepIntervalSeconds = sweepIntervalSeconds;
+	}
+
+	public void setSweepPageSize(int sweepPageSize) {
+		this.sweepPageSize = sweepPageSize;
+	}
+
+	public void setSweepListenerThreads(int sweepListenerThreads) {
+		this.sweepListenerThreads = sweepListenerThreads;
+	}
+
+	public void setIndexPrincipal(boolean indexPrincipal) {
+		this.indexPrincipal = indexPrincipal;
+	}
+
+	public void setIndexedAttributes(String indexedAttributes) {
+		this.indexedAttributes = indexedAttributes;
+	}
+
+	public void setCompactSchema(boolean compactSchema) {
+		this.compactSchema = compactSchema;
+	}
+
+	public void setCursorBatchSize(int cursorBatchSize) {
+		this.cursorBatchSize = cursorBatchSize;
+	}
+
+	public void setStripes(int stripes) {
+		this.stripes = stripes;
+	}
+
+	public void setStripeMode(String stripeMode) {
+		this.stripeMode = stripeMode;
+	}
+
+	public void setPreviousStripes(int previousStripes) {
+		this.previousStripes = previousStripes;
+	}
+
+	public void setOffloadThreshold(int offloadThreshold) {
+		this.offloadThreshold = offloadThreshold;
+	}
+
+	public void setBlobSweepIntervalSeconds(int blobSweepIntervalSeconds) {
+		this.blobSweepIntervalSeconds = blobSweepIntervalSeconds;
+	}
+
+	public void setTouchThrottlePercent(int touchThrottlePercent) {
+		this.touchThrottlePercent = touchThrottlePercent;
+	}
+
+	public void setCircuitFailureThreshold(int circuitFailureThreshold) {
+		this.circuitFailureThreshold = circuitFailureThreshold;
+	}
+
+	public void setCircuitSlowCallMillis(long circuitSlowCallMillis) {
+		this.circuitSlowCallMillis = circuitSlowCallMillis;
+	}
+
+	public void setCircuitOpenMillis(long circuitOpenMillis) {
+		this.circuitOpenMillis = circuitOpenMillis;
+	}
+
+	public void setFallbackSize(int fallbackSize) {
+		this.fallbackSize = fallbackSize;
+	}
+
+	public void setConnectionsPerHost(int connectionsPerHost) {
+		this.connectionsPerHost = connectionsPerHost;
+	}
+
+	public void setThreadsAllowedToBlockForConnectionMultiplier(
+			int threadsAllowedToBlockForConnectionMultiplier) {
+		this.threadsAllowedToBlockForConnectionMultiplier = threadsAllowedToBlockForConnectionMultiplier;
+	}
+
+	public void setMaxWaitTime(int maxWaitTime) {
+		this.maxWaitTime = maxWaitTime;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+
+	public void setSocketKeepAlive(boolean socketKeepAlive) {
+		this.socketKeepAlive = socketKeepAlive;
+	}
+
+	public void setSharedClient(boolean sharedClient) {
+		this.sharedClient = sharedClient;
+	}
+
+	public void setTouchWriteConcern(String touchWriteConcern) {
+		this.touchWriteConcern = touchWriteConcern;
+	}
+
+	public void setCreateWriteConcern(String createWriteConcern) {
+		this.createWriteConcern = createWriteConcern;
+	}
+
+	public void setUpdateWriteConcern(String updateWriteConcern) {
+		this.updateWriteConcern = updateWriteConcern;
+	}
+
+	public void setRemoveWriteConcern(String removeWriteConcern) {
+		this.removeWriteConcern = removeWriteConcern;
+	}
+
+	public void setReadPreference(String readPreference) {
+		this.readPreference = readPreference;
+	}
+
+	public void setProfileSampleRate(int profileSampleRate) {
+		this.profileSampleRate = profileSampleRate;
+	}
+
+	public void setReadYourWritesSize(int readYourWritesSize) {
+		this.readYourWritesSize = readYourWritesSize;
+	}
+
+	public void setReadYourWritesMillis(long readYourWritesMillis) {
+		this.readYourWritesMillis = readYourWritesMillis;
+	}
+
 	public String getInfo() {
 		return "Mongo Session Manager";
 	}
@@ -133,16 +458,25 @@ public class MongoSessionManager extends ManagerBase implements Lifecycle {
 		session.setValid(true);
 		session.setCreationTime(System.currentTimeMillis());
 		session.setNew(true);
-		currentSession.set(session);
-		log.fine("Created new empty session " + session.getIdInternal());
+		track(session.getIdInternal(), session);
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Created new empty session " + session.getIdInternal());
+		}
 		return session;
 	}
 
+	@Override
+	protected StandardSession getNewSession() {
+		return new MongoSession(this);
+	}
+
 	public Session createSession(java.lang.String sessionId) {
 		StandardSession session = (MongoSession) createEmptySession();
 
-		log.fine("Created session with id " + session.getIdInternal() + " ( "
-				+ sessionId + ")");
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Created session with id " + session.getIdInternal()
+					+ " ( " + sessionId + ")");
+		}
 		if (sessionId != null) {
 			session.setId(sessionId);
 		}
@@ -157,8 +491,13 @@ public class MongoSessionManager extends ManagerBase implements Lifecycle {
 	public Session[] findSessions() {
 		try {
 			List<Session> sessions = new ArrayList<Session>();
-			for (String sessionId : keys()) {
-				sessions.add(loadSession(sessionId));
+			SessionCursor<Session> cursor = iterateSessions();
+			try {
+				while (cursor.hasNext()) {
+					sessions.add(cursor.next());
+				}
+			} finally {
+				cursor.close();
 			}
 			return sessions.toArray(new Session[sessions.size()]);
 		} catch (IOException ex) {
@@ -180,41 +519,70 @@ public class MongoSessionManager extends ManagerBase implements Lifecycle {
 	}
 
 	public void remove(Session session) {
-		log.fine("Removing session ID : " + session.getId());
-		BasicDBObject query = new BasicDBObject();
-		query.put("_id", session.getId());
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Removing session ID : " + session.getId());
+		}
+		SessionWrite write = SessionWrite.delete(session.getId());
+		long start = System.nanoTime();
+		boolean failed = true;
 
 		try {
-			getCollection().remove(query);
+			if (!defer(write)) {
+				write(write);
+			}
+			failed = false;
 		} catch (IOException e) {
-			log.log(Level.SEVERE,
-					"Error removing session in Mongo Session Store", e);
+			if (!fallBack(write, e)) {
+				log.log(Level.SEVERE,
+						"Error removing session in Mongo Session Store", e);
+			}
+		} catch (MongoException e) {
+			if (!fallBack(write, e)) {
+				throw e;
+			}
 		} finally {
-			currentSession.remove();
+			metrics.record(SessionStoreMetrics.Operation.REMOVE, start, failed);
+			untrack();
 		}
 	}
 
 	public void backgroundProcess() {
-		processExpires();
+		reconcile();
+		if (!isCircuitOpen()) {
+			flushTouches();
+			processExpires();
+			if (blobSweeper != null) {
+				blobSweeper.process();
+			}
+		}
 	}
 
 	public void processExpires() {
-		BasicDBObject query = new BasicDBObject();
-
-		long olderThan = System.currentTimeMillis()
-				- (getMaxInactiveInterval() * 1000);
-
-		log.fine("Looking for sessions less than for expiry in Mongo : "
-				+ olderThan);
-
-		query.put("lastmodified", new BasicDBObject("$lt", olderThan));
+		if (expiryScan && expirySweeper != null) {
+			expirySweeper.process();
+		}
+	}
 
-		try {
-			WriteResult result = getCollection().remove(query);
-			log.fine("Expired sessions : " + result.getN());
-		} catch (IOException e) {
-			log.log(Level.SEVERE,
-					"Error cleaning session in Mongo Session Store", e);
+	/**
+	 * Drops what this node holds of a session removed from Mongo. Writes
+	 * still waiting for it become a remove, so they do not bring it back.
+	 */
+	private void forget(String id) {
+		if (nearCache != null) {
+			nearCache.remove(id);
+		}
+		if (touchTable != null) {
+			touchTable.remove(id);
+		}
+		if (writeBehindQueue != null && writeBehindQueue.get(id) != null) {
+			try {
+				writeBehindQueue.offer(SessionWrite.delete(id), 0);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (fallbackStore != null && fallbackStore.get(id) != null) {
+			fallbackStore.put(SessionWrite.delete(id));
 		}
 	}
 
@@ -244,22 +612,189 @@ public class MongoSessionManager extends ManagerBase implements Lifecycle {
 		}
 		log.info("Will expire sessions after " + getMaxInactiveInterval()
 				+ " seconds");
+		if (nearCacheSize > 0) {
+			nearCache = new NearCache(nearCacheSize);
+			log.info("Caching up to " + nearCacheSize
+					+ " sessions, trusted for " + nearCacheTrustMillis + "ms");
+		}
+		Set<String> names = new LinkedHashSet<String>();
+		for (String name : indexedAttributes.split(",")) {
+			if (name.trim().length() > 0) {
+				names.add(name.trim());
+			}
+		}
+		indexedAttributeNames = names;
+		schema = compactSchema ? DocumentSchema.COMPACT : DocumentSchema.LONG;
 		initDbConnection();
+		writtenVersions = null;
+		if (loadPreference.isSlaveOk() && readYourWritesSize > 0) {
+			writtenVersions = new WrittenVersions(readYourWritesSize,
+					readYourWritesMillis);
+			log.info("Reading sessions from secondaries, or from the primary "
+					+ "when a secondary has not caught up with a write made "
+					+ "here in the last " + readYourWritesMillis + "ms");
+		}
+		if (circuitFailureThreshold > 0) {
+			breaker = new CircuitBreaker(circuitFailureThreshold,
+					circuitSlowCallMillis, circuitOpenMillis, clock);
+			fallbackStore = new FallbackStore(fallbackSize);
+			log.info("Failing fast after " + circuitFailureThreshold
+					+ " failed Mongo calls, keeping up to " + fallbackSize
+					+ " sessions locally until Mongo is back");
+		}
+		ExpirySweeper.Sessions swept = new ExpirySweeper.Sessions() {
+			public List<DBCollection> collections() {
+				return getAllCollections();
+			}
+
+			public boolean hasLongDocuments() {
+				return migrator.hasLongDocuments();
+			}
+
+			public int maxInactiveInterval() {
+				return getMaxInactiveInterval();
+			}
+
+			public void forget(String id) {
+				MongoSessionManager.this.forget(id);
+			}
+
+			public void expired(DBObject document) throws Exception {
+				buildSession(DocumentSchema.sessionId(document.get("_id")),
+						readDocument(document), false).fireExpired();
+			}
+		};
+		SweepLease lease = expiryScan && sweepIntervalSeconds > 0 ? new SweepLease(
+				db.getCollection("sessionleases"), "expiry") : null;
+		expirySweeper = new ExpirySweeper(swept, schema, removeConcern,
+				metrics, lease, sweepIntervalSeconds, sweepPageSize,
+				sweepListenerThreads, "MongoSessionSweeper"
+						+ getContext().getName());
+		if (lease != null) {
+			log.info("Sweeping expired sessions for the cluster at most every "
+					+ sweepIntervalSeconds + " seconds, as "
+					+ lease.getOwner());
+			if (expiryIndexGraceSeconds() > 0) {
+				log.info("The expireAt TTL index only removes sessions "
+						+ expiryIndexGraceSeconds()
+						+ " seconds after they expire, leaving them to the "
+						+ "sweep so listeners are notified");
+			}
+		}
+		blobSweeper = null;
+		if (offloadThreshold >= 0 && deltaPersistence) {
+			blobSweeper = new BlobSweeper(new BlobSweeper.Sessions() {
+				public List<DBCollection> collections() {
+					return getAllCollections();
+				}
+
+				public List<Object> storedIds(Collection<String> ids) {
+					return MongoSessionManager.this.storedIds(ids);
+				}
+
+				public AttributeBlobStore blobStore() {
+					return getBlobStore();
+				}
+			}, new SweepLease(db.getCollection("sessionleases"), "blobs"),
+					blobSweepIntervalSeconds, cursorBatchSize);
+			log.info("Removing unused attribute blobs for the cluster at "
+					+ "most every " + blobSweepIntervalSeconds + " seconds");
+		}
+		if (touchThrottlePercent > 0) {
+			touchTable = new TouchTable();
+			log.info("Writing access times of unchanged sessions once "
+					+ touchThrottlePercent + "% of their timeout has passed");
+		}
+		if (writeBehind) {
+			writeBehindQueue = new WriteBehindQueue(
+					new WriteBehindQueue.Writer() {
+						public void write(SessionWrite write) throws Exception {
+							MongoSessionManager.this.write(write);
+						}
+					}, writeBehindQueueSize, writeBehindBatchSize,
+					writeBehindFlushMillis);
+			writeBehindQueue.start("MongoSessionWriteBehind"
+					+ getContext().getName());
+			log.info("Writing sessions behind, flushing every "
+					+ writeBehindFlushMillis + "ms or "
+					+ writeBehindBatchSize + " sessions");
+		}
+		inFlight = null;
+		if (requestScopedTracking) {
+			if (trackerValve == null) {
+				log.warning("requestScopedTracking needs the Mongo Tracker Valve, "
+						+ "keeping sessions per thread");
+			} else {
+				inFlight = new InFlightSessions();
+				log.info("Keeping sessions per request rather than per thread");
+			}
+		}
+		profiler.setSampleRate(profileSampleRate);
+		if (profileSampleRate > 0) {
+			log.info("Profiling the attributes of one save in "
+					+ profileSampleRate);
+		}
+		registerMetrics();
 	}
 
 	protected void stopInternal() throws LifecycleException {
-		mongo.close();
+		this.setState(LifecycleState.STOPPING);
+		if (writeBehindQueue != null) {
+			try {
+				writeBehindQueue.stop();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new LifecycleException(
+						"Interrupted flushing pending session writes", e);
+			} finally {
+				writeBehindQueue = null;
+			}
+		}
+		if (fallbackStore != null) {
+			reconcile();
+			if (!fallbackStore.isEmpty()) {
+				log.warning("Discarding changes of " + fallbackStore.size()
+						+ " sessions Mongo was unavailable for");
+			}
+			fallbackStore = null;
+			breaker = null;
+		}
+		if (touchTable != null) {
+			flushTouches();
+			touchTable = null;
+		}
+		if (expirySweeper != null) {
+			expirySweeper.stop();
+			expirySweeper = null;
+		}
+		blobSweeper = null;
+		inFlight = null;
+		if (nearCache != null) {
+			nearCache.clear();
+		}
+		unregisterMetrics();
+		if (ownsClient) {
+			if (sharedClient) {
+				MongoClientRegistry.release(mongo);
+			} else {
+				mongo.close();
+			}
+			ownsClient = false;
+			mongo = null;
+			db = null;
+			blobStore = null;
+		}
 	}
 
-	public static String getDatabase() {
+	public String getDatabase() {
 		return database;
 	}
 
-	public static String getHost() {
+	public String getHost() {
 		return host;
 	}
 
-	public static int getPort() {
+	public int getPort() {
 		return port;
 	}
 
@@ -275,10 +810,26 @@ public class MongoSessionManager extends ManagerBase implements Lifecycle {
 		return db;
 	}
 
+	void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
 	public boolean isSlaveOk() {
 		return slaveOk;
 	}
 
+	public SessionStoreMetrics getMetrics() {
+		return metrics;
+	}
+
+	public AttributeProfiler getAttributeProfiler() {
+		return profiler;
+	}
+
+	public int getProfileSampleRate() {
+		return profileSampleRate;
+	}
+
 	public MongoSessionTrackerValve getTrackerValve() {
 		return trackerValve;
 	}
@@ -287,6 +838,10 @@ public class MongoSessionManager extends ManagerBase implements Lifecycle {
 		return currentSession;
 	}
 
+	public boolean isRequestScopedTracking() {
+		return requestScopedTracking;
+	}
+
 	public Serializer getSerializer() {
 		return serializer;
 	}
@@ -295,162 +850,1893 @@ public class MongoSessionManager extends ManagerBase implements Lifecycle {
 		return serializationStrategyClass;
 	}
 
-	@SuppressWarnings("deprecation")
-	private void initDbConnection() throws LifecycleException {
-		try {
-			String[] hosts = getHost().split(",");
+	public String getRegisteredClasses() {
+		return registeredClasses;
+	}
 
-			List<ServerAddress> addrs = new ArrayList<ServerAddress>();
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
 
-			for (String host : hosts) {
-				addrs.add(new ServerAddress(host, getPort()));
-			}
-			mongo = new MongoClient(addrs);
-			db = mongo.getDB(getDatabase());
-			if (slaveOk) {
-				db.slaveOk();
-			}
-			getCollection().ensureIndex(new BasicDBObject("lastmodified", 1));
-			log.info("Connected to Mongo " + host + "/" + database
-					+ " for session storage, slaveOk=" + slaveOk + ", "
-					+ (getMaxInactiveInterval() * 1000) + " session live time");
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new LifecycleException("Error Connecting to Mongo", e);
-		}
+	public boolean isDeltaPersistence() {
+		return deltaPersistence;
 	}
 
-	private void initSerializer() throws ClassNotFoundException,
-			IllegalAccessException, InstantiationException {
-		log.info("Attempting to use serializer :" + serializationStrategyClass);
-		serializer = (Serializer) Class.forName(serializationStrategyClass)
-				.newInstance();
+	public int getNearCacheSize() {
+		return nearCacheSize;
 	}
 
-	// =============================================
-	// =============================================
-	// =============================================
-	public void save(Session session) throws IOException {
-		try {
-			log.fine("Saving session " + session + " into Mongo");
+	public long getNearCacheTrustMillis() {
+		return nearCacheTrustMillis;
+	}
 
-			StandardSession standardsession = (MongoSession) session;
+	public boolean isExpiryScan() {
+		return expiryScan;
+	}
 
-			if (log.isLoggable(Level.FINE)) {
-				log.fine("Session Contents [" + session.getId() + "]:");
-				for (Object name : Collections.list(standardsession
-						.getAttributeNames())) {
-					log.fine("  " + name);
-				}
-			}
+	public int getSweepIntervalSeconds() {
+		return sweepIntervalSeconds;
+	}
 
-			Map<Object, Object> data = serializer
-					.serializeFrom(standardsession);
+	public int getSweepPageSize() {
+		return sweepPageSize;
+	}
 
-			BasicDBObject dbsession = new BasicDBObject();
-			dbsession.put("_id", standardsession.getId());
-			dbsession.put("data", JSONObject.toJSONString(data));
-			dbsession.put("lastmodified", System.currentTimeMillis());
+	public int getSweepListenerThreads() {
+		return sweepListenerThreads;
+	}
 
-			BasicDBObject query = new BasicDBObject();
-			query.put("_id", standardsession.getIdInternal());
-			getCollection().update(query, dbsession, true, false);
-			log.fine("Updated session with id " + session.getIdInternal());
-		} catch (IOException e) {
-			log.severe(e.getMessage());
-			e.printStackTrace();
-			throw e;
-		} finally {
-			currentSession.remove();
-			log.fine("Session removed from ThreadLocal :"
-					+ session.getIdInternal());
-		}
+	public boolean isIndexPrincipal() {
+		return indexPrincipal;
 	}
 
-	public Session loadSession(String id) throws IOException {
+	public String getIndexedAttributes() {
+		return indexedAttributes;
+	}
 
-		if (id == null || id.length() == 0) {
-			return createEmptySession();
-		}
+	public boolean isCompactSchema() {
+		return compactSchema;
+	}
 
-		StandardSession session = currentSession.get();
+	public int getCursorBatchSize() {
+		return cursorBatchSize;
+	}
 
-		if (session != null) {
-			if (id.equals(session.getId())) {
-				return session;
-			} else {
-				currentSession.remove();
-			}
-		}
-		try {
-			log.fine("Loading session " + id + " from Mongo");
-			BasicDBObject query = new BasicDBObject();
-			query.put("_id", id);
+	public int getStripes() {
+		return stripes;
+	}
 
-			DBObject dbsession = getCollection().findOne(query);
+	public String getStripeMode() {
+		return stripeMode;
+	}
 
-			if (dbsession == null) {
-				log.fine("Session " + id + " not found in Mongo");
-				StandardSession ret = getNewSession();
-				ret.setId(id);
-				currentSession.set(ret);
-				return ret;
-			}
+	public int getPreviousStripes() {
+		return previousStripes;
+	}
 
-			String map = dbsession.get("data").toString();
-			Map<Object, Object> data = JSON.parseObject(map,
-					new TypeReference<Map<Object, Object>>() {
-					});
-			;
+	public int getOffloadThreshold() {
+		return offloadThreshold;
+	}
 
-			session = (MongoSession) createEmptySession();
-			session.setId(id);
-			session.setManager(this);
-			serializer.deserializeInto(data, session);
+	public int getBlobSweepIntervalSeconds() {
+		return blobSweepIntervalSeconds;
+	}
 
-			session.setMaxInactiveInterval(-1);
-			session.access();
-			session.setValid(true);
-			session.setNew(false);
+	public int getTouchThrottlePercent() {
+		return touchThrottlePercent;
+	}
 
-			if (log.isLoggable(Level.FINE)) {
-				log.fine("Session Contents [" + session.getId() + "]:");
-				for (Object name : Collections
-						.list(session.getAttributeNames())) {
-					log.fine("  " + name);
-				}
-			}
+	public int getCircuitFailureThreshold() {
+		return circuitFailureThreshold;
+	}
 
-			log.fine("Loaded session id " + id);
-			currentSession.set(session);
-			return session;
-		} catch (IOException e) {
-			log.severe(e.getMessage());
-			throw e;
-		} catch (ClassNotFoundException ex) {
-			log.log(Level.SEVERE, "Unable to deserialize session ", ex);
-			throw new IOException("Unable to deserializeInto session", ex);
-		}
+	public long getCircuitSlowCallMillis() {
+		return circuitSlowCallMillis;
 	}
 
-	public String[] keys() throws IOException {
+	public long getCircuitOpenMillis() {
+		return circuitOpenMillis;
+	}
 
-		BasicDBObject restrict = new BasicDBObject();
-		restrict.put("_id", 1);
+	public int getFallbackSize() {
+		return fallbackSize;
+	}
+
+	public boolean isCircuitOpen() {
+		return breaker != null && breaker.isOpen();
+	}
 
-		DBCursor cursor = getCollection().find(new BasicDBObject(), restrict);
+	public int getConnectionsPerHost() {
+		return connectionsPerHost;
+	}
 
-		List<String> ret = new ArrayList<String>();
+	public int getThreadsAllowedToBlockForConnectionMultiplier() {
+		return threadsAllowedToBlockForConnectionMultiplier;
+	}
 
-		while (cursor.hasNext()) {
-			ret.add(cursor.next().get("").toString());
-		}
+	public int getMaxWaitTime() {
+		return maxWaitTime;
+	}
 
-		return ret.toArray(new String[ret.size()]);
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	public boolean isSocketKeepAlive() {
+		return socketKeepAlive;
+	}
+
+	public boolean isSharedClient() {
+		return sharedClient;
+	}
+
+	public String getTouchWriteConcern() {
+		return touchWriteConcern;
+	}
+
+	public String getCreateWriteConcern() {
+		return createWriteConcern;
+	}
+
+	public String getUpdateWriteConcern() {
+		return updateWriteConcern;
+	}
+
+	public String getRemoveWriteConcern() {
+		return removeWriteConcern;
+	}
+
+	public String getReadPreference() {
+		return readPreference;
+	}
+
+	public int getReadYourWritesSize() {
+		return readYourWritesSize;
+	}
+
+	public long getReadYourWritesMillis() {
+		return readYourWritesMillis;
+	}
+
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	public int getWriteBehindQueueSize() {
+		return writeBehindQueueSize;
+	}
+
+	public int getWriteBehindBatchSize() {
+		return writeBehindBatchSize;
+	}
+
+	public long getWriteBehindFlushMillis() {
+		return writeBehindFlushMillis;
+	}
+
+	public long getWriteBehindOfferMillis() {
+		return writeBehindOfferMillis;
+	}
+
+	/**
+	 * Seconds past expireAt the TTL index removes a session at. While the
+	 * leased sweep notifies listeners, the index would race it and remove
+	 * sessions no listener hears about, so it only reaps sessions the sweep
+	 * has missed for two sweep intervals, as when no node is running.
+	 */
+	private int expiryIndexGraceSeconds() {
+		return expiryScan && sweepIntervalSeconds > 0
+				&& sweepListenerThreads > 0 ? 2 * sweepIntervalSeconds : 0;
+	}
+
+	private void initDbConnection() throws LifecycleException {
+		try {
+			if (db == null) {
+				connect();
+			}
+			collections = stripeCollections(stripes);
+			previousCollections = previousStripes > 0 ? stripeCollections(
+					previousStripes) : null;
+			initOperationSettings();
+			migrator = new SchemaMigrator(new SchemaMigrator.Stripes() {
+				public DBCollection collection(String id) {
+					return getCollection(id);
+				}
+
+				public DBCollection previousCollection(String id) {
+					return getPreviousCollection(id);
+				}
+
+				public List<DBCollection> collections() {
+					return getAllCollections();
+				}
+			}, schema, createConcern, removeConcern, cursorBatchSize);
+			boolean longDocuments = migrator.hasLongDocuments();
+			for (DBCollection collection : collections) {
+				if (!schema.compact || longDocuments) {
+					collection.ensureIndex(new BasicDBObject(
+							DocumentSchema.LONG.lastModified, 1));
+					ExpirySweeper.ensureExpiryIndex(collection,
+							DocumentSchema.LONG.expireAt,
+							expiryIndexGraceSeconds());
+				}
+				if (schema.compact) {
+					ExpirySweeper.ensureExpiryIndex(collection,
+							schema.expireAt, expiryIndexGraceSeconds());
+				}
+				if (indexPrincipal) {
+					collection.ensureIndex(
+							new BasicDBObject(schema.principal, 1),
+							new BasicDBObject("sparse", true));
+				}
+				for (String name : indexedAttributeNames) {
+					collection.ensureIndex(
+							new BasicDBObject(keyField(name), 1),
+							new BasicDBObject("sparse", true));
+				}
+			}
+			if (stripes > 1) {
+				log.info("Spreading sessions over " + stripes + " "
+						+ stripeMode + "s");
+			}
+			if (longDocuments) {
+				log.info("Writing sessions in the compact schema. Documents "
+						+ "of the long schema are left, they are expired as "
+						+ "before and converted when loaded or by "
+						+ "convertToCompactSchema. Every node must be "
+						+ "restarted with compactSchema before sessions are "
+						+ "served again.");
+			} else if (schema.compact) {
+				log.info("Writing sessions in the compact schema");
+			}
+			if (offloadThreshold >= 0 && !deltaPersistence) {
+				log.warning("offloadThreshold needs deltaPersistence, "
+						+ "attributes will not be moved to GridFS");
+			}
+			log.info("Connected to Mongo " + host + "/" + database
+					+ " for session storage, readPreference=" + loadPreference
+					+ ", " + (getMaxInactiveInterval() * 1000)
+					+ " session live time");
+		} catch (IllegalArgumentException e) {
+			throw new LifecycleException("Invalid Mongo session settings", e);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new LifecycleException("Error Connecting to Mongo", e);
+		}
+	}
+
+	/**
+	 * Registers the store metrics and the attribute profiler with the
+	 * platform MBean server, named after the host and context. Failing to
+	 * register is not fatal.
+	 */
+	private void registerMetrics() {
+		metricsName = registerMBean(metrics, "MongoSessionManager");
+		profilerName = registerMBean(profiler, "AttributeProfiler");
+	}
+
+	private ObjectName registerMBean(Object mbean, String type) {
+		Container host = getContext().getParent();
+		try {
+			ObjectName name = new ObjectName("com.dawsonsystems.session:type="
+					+ type + ",host="
+					+ ObjectName.quote(host == null ? "" : host.getName())
+					+ ",context=" + ObjectName.quote(getContext().getName()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+					name);
+			return name;
+		} catch (JMException e) {
+			log.log(Level.WARNING, "Unable to register " + type + " MBean", e);
+			return null;
+		}
+	}
+
+	private void unregisterMetrics() {
+		unregisterMBean(metricsName);
+		metricsName = null;
+		unregisterMBean(profilerName);
+		profilerName = null;
+	}
+
+	private void unregisterMBean(ObjectName name) {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			log.log(Level.WARNING, "Unable to unregister " + name, e);
+		}
+	}
+
+	/**
+	 * Opens a client for the configured hosts. Not used when a DB has been
+	 * supplied through setDb, whose owner is then responsible for closing it.
+	 */
+	private void connect() throws IOException {
+		String[] hosts = getHost().split(",");
+
+		List<ServerAddress> addrs = new ArrayList<ServerAddress>();
+
+		for (String host : hosts) {
+			addrs.add(new ServerAddress(host, getPort()));
+		}
+		MongoClientOptions options = MongoClientOptions
+				.builder()
+				.connectionsPerHost(connectionsPerHost)
+				.threadsAllowedToBlockForConnectionMultiplier(
+						threadsAllowedToBlockForConnectionMultiplier)
+				.maxWaitTime(maxWaitTime).connectTimeout(connectTimeout)
+				.socketTimeout(socketTimeout)
+				.socketKeepAlive(socketKeepAlive).build();
+		mongo = sharedClient ? MongoClientRegistry.acquire(addrs, options)
+				: new MongoClient(addrs, options);
+		ownsClient = true;
+		db = mongo.getDB(getDatabase());
+	}
+
+	/**
+	 * Resolves the per-operation write concerns and the read preference for
+	 * loads. slaveOk is kept as a shorthand for secondaryPreferred.
+	 */
+	private void initOperationSettings() throws IOException {
+		WriteConcern defaultConcern = collections[0].getWriteConcern();
+		touchConcern = writeConcern(touchWriteConcern, defaultConcern);
+		createConcern = writeConcern(createWriteConcern, defaultConcern);
+		updateConcern = writeConcern(updateWriteConcern, defaultConcern);
+		removeConcern = writeConcern(removeWriteConcern, defaultConcern);
+		if (readPreference != null && readPreference.length() > 0) {
+			loadPreference = ReadPreference.valueOf(readPreference);
+		} else if (slaveOk) {
+			loadPreference = ReadPreference.secondaryPreferred();
+		} else {
+			loadPreference = ReadPreference.primary();
+		}
+	}
+
+	private static WriteConcern writeConcern(String name,
+			WriteConcern defaultConcern) {
+		if (name == null || name.length() == 0) {
+			return defaultConcern;
+		}
+		WriteConcern concern = WriteConcern.valueOf(name);
+		if (concern == null) {
+			throw new IllegalArgumentException("Unknown write concern " + name);
+		}
+		return concern;
+	}
+
+	/**
+	 * Whether a write made with this concern reports how many documents it
+	 * matched. Unacknowledged writes are assumed to have matched.
+	 */
+	private static boolean matched(WriteResult result, WriteConcern concern) {
+		return !concern.callGetLastError() || result.getN() > 0;
+	}
+
+	private void initSerializer() throws ClassNotFoundException,
+			IllegalAccessException, InstantiationException {
+		log.info("Attempting to use serializer :" + serializationStrategyClass);
+		serializer = (Serializer) Class.forName(serializationStrategyClass)
+				.newInstance();
+		Serializer inner = serializer instanceof CompressingSerializer ? ((CompressingSerializer) serializer)
+				.getDelegate() : serializer;
+		if (inner instanceof TypedBinarySerializer) {
+			((TypedBinarySerializer) inner).registerClasses(registeredClasses);
+		}
+		if (compressionThreshold >= 0
+				&& !(serializer instanceof CompressingSerializer)) {
+			log.info("Compressing session payloads of " + compressionThreshold
+					+ " bytes or more");
+			serializer = new CompressingSerializer(serializer,
+					compressionThreshold);
+		}
+	}
+
+	// =============================================
+	// =============================================
+	// =============================================
+	public void save(Session session) throws IOException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Saving session " + session + " into Mongo");
+			}
+
+			MongoSession standardsession = (MongoSession) session;
+
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Session Contents [" + session.getId() + "]:");
+				for (Object name : Collections.list(standardsession
+						.getAttributeNames())) {
+					log.fine("  " + name);
+				}
+			}
+
+			Map<Object, Object> snapshot = serializer
+					.serializeFrom(standardsession);
+			Map<String, Integer> hashes = new HashMap<String, Integer>();
+			Map<Object, Object> data = encodeMutableAttributes(snapshot,
+					hashes);
+
+			Set<String> changed = new HashSet<String>(
+					standardsession.getChangedAttributes());
+			for (Map.Entry<String, Integer> entry : hashes.entrySet()) {
+				if (!entry.getValue().equals(
+						standardsession.getAttributeHashes().get(
+								entry.getKey()))) {
+					changed.add(entry.getKey());
+				}
+			}
+			data = keepBlobReferences(standardsession, data, changed);
+			if (profiler.sample()) {
+				profile(snapshot, changed, !changed.isEmpty()
+						|| !standardsession.getRemovedAttributes().isEmpty());
+			}
+			int maxInactive = standardsession.getMaxInactiveInterval();
+			String principal = null;
+			if (indexPrincipal && standardsession.getPrincipal() != null) {
+				principal = standardsession.getPrincipal().getName();
+				if (principal.equals(standardsession.getStoredPrincipal())) {
+					principal = null;
+				}
+			}
+			SessionWrite write = new SessionWrite(
+					standardsession.getIdInternal(), data, changed,
+					new HashSet<String>(standardsession.getRemovedAttributes()),
+					standardsession.isStored()
+							&& maxInactive == standardsession
+									.getStoredMaxInactiveInterval(),
+					standardsession.getVersion(), maxInactive,
+					standardsession.getCreationTimeInternal(), principal);
+
+			if (write.isTouch() && touchTable != null
+					&& throttleTouch(standardsession, write)) {
+				failed = false;
+				return;
+			}
+
+			if (defer(write)) {
+				standardsession.markClean(hashes);
+				standardsession.setStoredMaxInactiveInterval(maxInactive);
+				if (principal != null) {
+					standardsession.setStoredPrincipal(principal);
+				}
+				failed = false;
+				if (log.isLoggable(Level.FINE)) {
+					log.fine("Deferred write of session "
+							+ session.getIdInternal());
+				}
+				return;
+			}
+
+			long version = standardsession.getVersion();
+			try {
+				version = write(write);
+			} catch (IOException e) {
+				if (!fallBack(write, e)) {
+					throw e;
+				}
+			} catch (MongoException e) {
+				if (!fallBack(write, e)) {
+					throw e;
+				}
+			}
+			standardsession.markClean(hashes);
+			standardsession.setStoredMaxInactiveInterval(maxInactive);
+			standardsession.setVersion(version);
+			if (principal != null) {
+				standardsession.setStoredPrincipal(principal);
+			}
+			failed = false;
+		} catch (IOException e) {
+			log.severe(e.getMessage());
+			e.printStackTrace();
+			throw e;
+		} finally {
+			metrics.record(SessionStoreMetrics.Operation.SAVE, start, failed);
+			untrack();
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Session removed from ThreadLocal :"
+						+ session.getIdInternal());
+			}
+		}
+	}
+
+	/**
+	 * Takes care of a write that only refreshes the access time, if
+	 * throttling allows. It is dropped while the stored access time is recent,
+	 * otherwise left in the touch table for the next flush. Returns false if
+	 * the session is close enough to expiring that it must be touched now.
+	 */
+	private boolean throttleTouch(MongoSession session, SessionWrite write) {
+		long now = System.currentTimeMillis();
+		long age = now - session.getStoredAccessTime();
+		int maxInactive = write.getMaxInactiveInterval();
+		if (maxInactive > 0) {
+			long lifetime = maxInactive * 1000L;
+			if (lifetime - age < TOUCH_SAFETY_MILLIS) {
+				return false;
+			}
+			if (age < lifetime * touchThrottlePercent / 100) {
+				return true;
+			}
+		}
+		touchTable.put(write.getId(), now, maxInactive);
+		return true;
+	}
+
+	/**
+	 * Writes the pending access times, one multi-id update per stripe for
+	 * each session timeout. A group is written at the earliest access time
+	 * in it, so no session outlives its timeout, and only to documents
+	 * last modified before that, so a flush never moves lastmodified or
+	 * expireAt back over a later write. Touches that fail stay pending for
+	 * the next flush.
+	 */
+	private void flushTouches() {
+		if (touchTable == null || touchTable.isEmpty()) {
+			return;
+		}
+		int written = 0;
+		try {
+			for (Map.Entry<Integer, Map<String, Long>> group : touchTable
+					.groups().entrySet()) {
+				int maxInactive = group.getKey();
+				Map<String, Long> touched = group.getValue();
+				long accessTime = Long.MAX_VALUE;
+				for (Long packed : touched.values()) {
+					accessTime = Math.min(accessTime,
+							TouchTable.accessTime(packed));
+				}
+				BasicDBObject set = new BasicDBObject(schema.lastModified,
+						schema.time(accessTime));
+				if (maxInactive > 0) {
+					set.put(schema.expireAt, new Date(accessTime
+							+ maxInactive * 1000L));
+				}
+				BasicDBObject update = new BasicDBObject("$set", set);
+
+				Map<DBCollection, List<String>> byStripe = new HashMap<DBCollection, List<String>>();
+				for (String id : touched.keySet()) {
+					DBCollection collection = getCollection(id);
+					List<String> ids = byStripe.get(collection);
+					if (ids == null) {
+						ids = new ArrayList<String>();
+						byStripe.put(collection, ids);
+					}
+					ids.add(id);
+				}
+				for (Map.Entry<DBCollection, List<String>> stripe : byStripe
+						.entrySet()) {
+					List<String> ids = stripe.getValue();
+					for (int from = 0; from < ids.size(); from += cursorBatchSize) {
+						List<String> batch = ids.subList(from,
+								Math.min(ids.size(), from + cursorBatchSize));
+						BasicDBObject query = new BasicDBObject("_id",
+								new BasicDBObject("$in", storedIds(batch)));
+						query.put(schema.lastModified, new BasicDBObject("$lt",
+								schema.time(accessTime)));
+						stripe.getKey().update(query, update, false, true,
+								touchConcern);
+						for (String id : batch) {
+							touchTable.written(id, touched.get(id));
+						}
+						written += batch.size();
+					}
+				}
+			}
+		} catch (MongoException e) {
+			log.log(Level.SEVERE, "Error writing session access times", e);
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Wrote access times of " + written + " sessions");
+		}
+	}
+
+	private boolean enqueue(SessionWrite write) throws IOException {
+		try {
+			return writeBehindQueue.offer(write, writeBehindOfferMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted queueing session write", e);
+		}
+	}
+
+	/**
+	 * Writes a session to Mongo as cheaply as its changes allow and returns
+	 * the version of the stored document. Writes always $inc the stored
+	 * version, so the version returned can only lag the stored one if another
+	 * node wrote in between, which makes a cached copy fail validation.
+	 */
+	private long write(SessionWrite write) throws IOException {
+		long start = beforeCall();
+		boolean failed = false;
+		try {
+			return writeToMongo(write);
+		} catch (MongoException e) {
+			failed = true;
+			throw e;
+		} finally {
+			afterCall(start, failed);
+		}
+	}
+
+	/**
+	 * Returns the start time of a Mongo call, once the circuit breaker has
+	 * let it through.
+	 */
+	private long beforeCall() throws CircuitOpenException {
+		if (breaker != null && !breaker.allow()) {
+			throw new CircuitOpenException();
+		}
+		return System.nanoTime();
+	}
+
+	private void afterCall(long start, boolean failed) {
+		if (breaker == null) {
+			return;
+		}
+		boolean wasOpen = breaker.isOpen();
+		breaker.record(start, failed);
+		if (wasOpen && !breaker.isOpen()) {
+			log.info("Mongo session store reachable again, closing circuit");
+		} else if (!wasOpen && breaker.isOpen()) {
+			log.warning("Mongo session store failing, opening circuit for "
+					+ circuitOpenMillis + "ms");
+		}
+	}
+
+	/**
+	 * Hands a write to the fallback store or the write-behind queue, if
+	 * either takes it, and returns false if it has to be written now. Once a
+	 * session has writes waiting in the fallback store its later writes go
+	 * there too, so they reach Mongo in order.
+	 */
+	private boolean defer(SessionWrite write) throws IOException {
+		if (fallbackStore != null && fallbackStore.get(write.getId()) != null) {
+			fallbackStore.put(write);
+			return true;
+		}
+		if (writeBehindQueue != null && enqueue(write)) {
+			return true;
+		}
+		if (fallbackStore != null && breaker.isOpen()) {
+			fallbackStore.put(write);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Keeps a write that failed in the fallback store, if there is one.
+	 */
+	private boolean fallBack(SessionWrite write, Exception e) {
+		if (fallbackStore == null) {
+			return false;
+		}
+		fallbackStore.put(write);
+		if (!(e instanceof CircuitOpenException)) {
+			log.log(Level.WARNING, "Keeping session " + write.getId()
+					+ " locally until Mongo is available", e);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the changes held in the fallback store back to Mongo, oldest
+	 * session first, stopping at the first failure. A session started over
+	 * because it could not be read during the outage is not written over a
+	 * copy stored in the meantime.
+	 */
+	private void reconcile() {
+		if (fallbackStore == null || fallbackStore.isEmpty()) {
+			return;
+		}
+		int written = 0;
+		try {
+			for (SessionWrite write : fallbackStore.snapshot()) {
+				if (!write.isDelete() && !write.isStored()
+						&& exists(write.getId())) {
+					log.warning("Not reconciling session " + write.getId()
+							+ ", it was started over while Mongo was unavailable");
+				} else {
+					write(write);
+					written++;
+				}
+				fallbackStore.written(write);
+			}
+		} catch (CircuitOpenException e) {
+			return;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Error reconciling sessions", e);
+		} catch (MongoException e) {
+			log.log(Level.WARNING, "Error reconciling sessions", e);
+		}
+		if (written > 0) {
+			log.info("Reconciled " + written
+					+ " sessions changed while Mongo was unavailable");
+		}
+	}
+
+	private boolean exists(String id) throws IOException {
+		long start = beforeCall();
+		boolean failed = false;
+		try {
+			return getCollection(id).findOne(anyIdQuery(id),
+					new BasicDBObject("_id", 1)) != null;
+		} catch (MongoException e) {
+			failed = true;
+			throw e;
+		} finally {
+			afterCall(start, failed);
+		}
+	}
+
+	/**
+	 * Matches the document of a session under the id it is written with.
+	 */
+	private BasicDBObject idQuery(String id) {
+		return new BasicDBObject("_id", schema.id(id));
+	}
+
+	/**
+	 * Matches the document of a session in either schema.
+	 */
+	private BasicDBObject anyIdQuery(String id) {
+		List<Object> ids = storedIds(Collections.singletonList(id));
+		return new BasicDBObject("_id", ids.size() == 1 ? ids.get(0)
+				: new BasicDBObject("$in", ids));
+	}
+
+	/**
+	 * Returns the ids sessions may be stored under, including those of the
+	 * long schema while documents in it may be left.
+	 */
+	private List<Object> storedIds(Collection<String> ids) {
+		List<Object> stored = new ArrayList<Object>(ids.size());
+		for (String id : ids) {
+			Object converted = schema.id(id);
+			stored.add(converted);
+			if (converted != id) {
+				stored.add(id);
+			}
+		}
+		return stored;
+	}
+
+	private long writeToMongo(SessionWrite write) throws IOException {
+		String id = write.getId();
+
+		if (write.isDelete()) {
+			if (nearCache != null) {
+				nearCache.remove(id);
+			}
+			BasicDBObject query = anyIdQuery(id);
+			getCollection(id).remove(query, removeConcern);
+			DBCollection previous = getPreviousCollection(id);
+			if (previous != null) {
+				previous.remove(query, removeConcern);
+			}
+			if (offloadThreshold >= 0) {
+				getBlobStore().removeSession(id);
+			}
+			if (touchTable != null) {
+				touchTable.remove(id);
+			}
+			if (writtenVersions != null) {
+				writtenVersions.written(id, WrittenVersions.REMOVED);
+			}
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Removed session with id " + id);
+			}
+			return 0;
+		}
+
+		// Whatever is written below stores an access time at least this
+		// recent, pending touches up to it would only move it back
+		long accessTime = System.currentTimeMillis();
+		if (write.isTouch() && touch(write)) {
+			if (touchTable != null) {
+				touchTable.persisted(id, accessTime);
+			}
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Session " + id
+						+ " unchanged, updated lastmodified only");
+			}
+			return write.getVersion();
+		}
+
+		if (!write.isStored() || write.isTouch() || !deltaPersistence
+				|| !saveDelta(write)) {
+			saveFull(write);
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Updated session with id " + id);
+			}
+		} else if (log.isLoggable(Level.FINE)) {
+			log.fine("Updated " + write.getChanged().size() + " and removed "
+					+ write.getRemoved().size() + " attributes of session "
+					+ id);
+		}
+
+		if (touchTable != null) {
+			touchTable.persisted(id, accessTime);
+		}
+		long version = write.getVersion() + 1;
+		if (writtenVersions != null) {
+			writtenVersions.written(id, version);
+		}
+		if (nearCache != null) {
+			long now = System.currentTimeMillis();
+			String principal = write.getPrincipal();
+			if (principal == null) {
+				// Unchanged, so whatever was cached is still stored
+				NearCache.Entry previous = nearCache.get(id);
+				principal = previous == null ? null : previous.getPrincipal();
+			}
+			nearCache.put(id, new NearCache.Entry(version, write.getData(), null,
+					write.getMaxInactiveInterval(), write.getCreationTime(),
+					now, principal, now));
+		}
+		return version;
+	}
+
+	private void saveFull(SessionWrite write) throws IOException {
+		Map<Object, Object> data = write.getData();
+
+		BasicDBObject set = new BasicDBObject();
+		long size = 0;
+		if (deltaPersistence) {
+			BasicDBObject attrs = new BasicDBObject();
+			for (Map.Entry<Object, Object> entry : data.entrySet()) {
+				Object encoded = offload(write.getId(),
+						encodeValue(entry.getValue()));
+				attrs.put(attributeField(entry.getKey().toString()), encoded);
+				size += encodedSize(encoded);
+			}
+			set.put(schema.attrs, attrs);
+		} else {
+			Object encoded = encodeWhole(data);
+			set.put(schema.data, encoded);
+			size = encodedSize(encoded);
+		}
+		set.put(schema.created, schema.time(write.getCreationTime()));
+		set.put(schema.size, size);
+		BasicDBObject unset = new BasicDBObject(
+				deltaPersistence ? schema.data : schema.attrs, 1);
+		putAccess(write, set, unset);
+		putKeys(write, set, unset, true);
+
+		BasicDBObject dbsession = new BasicDBObject("$set", set);
+		dbsession.put("$unset", unset);
+		dbsession.put("$inc", new BasicDBObject(schema.version, 1));
+
+		BasicDBObject query = idQuery(write.getId());
+		getCollection(write.getId()).update(query, dbsession, true, false,
+				write.isStored() ? updateConcern : createConcern);
+		metrics.bytesWritten(size);
+	}
+
+	/**
+	 * Bumps lastmodified on a session whose contents have not changed since it
+	 * was loaded. Returns false if the document has gone away in the meantime,
+	 * in which case the caller must write the session in full.
+	 */
+	private boolean touch(SessionWrite write) throws IOException {
+		BasicDBObject query = idQuery(write.getId());
+
+		BasicDBObject set = new BasicDBObject();
+		BasicDBObject unset = new BasicDBObject();
+		putAccess(write, set, unset);
+
+		BasicDBObject update = new BasicDBObject("$set", set);
+		if (!unset.isEmpty()) {
+			update.put("$unset", unset);
+		}
+
+		WriteResult result = getCollection(write.getId()).update(query,
+				update, false, false, touchConcern);
+		return matched(result, touchConcern);
+	}
+
+	/**
+	 * Writes only the changed and removed attributes of a session stored in
+	 * the per-attribute layout. Returns false if the document has gone away,
+	 * in which case the caller must write the session in full.
+	 */
+	private boolean saveDelta(SessionWrite write) throws IOException {
+		BasicDBObject query = idQuery(write.getId());
+
+		BasicDBObject set = new BasicDBObject();
+		long size = 0;
+		for (String name : write.getChanged()) {
+			Object encoded = offload(write.getId(),
+					encodeValue(write.getData().get(name)));
+			set.put(schema.attrs + "." + attributeField(name), encoded);
+			size += encodedSize(encoded);
+		}
+		BasicDBObject unset = new BasicDBObject();
+		for (String name : write.getRemoved()) {
+			unset.put(schema.attrs + "." + attributeField(name), 1);
+		}
+		putAccess(write, set, unset);
+		putKeys(write, set, unset, false);
+
+		BasicDBObject update = new BasicDBObject("$set", set);
+		update.put("$inc", new BasicDBObject(schema.version, 1));
+		if (!unset.isEmpty()) {
+			update.put("$unset", unset);
+		}
+
+		WriteResult result = getCollection(write.getId()).update(query,
+				update, false, false, updateConcern);
+		if (!matched(result, updateConcern)) {
+			return false;
+		}
+		metrics.bytesWritten(size);
+		return true;
+	}
+
+	/**
+	 * Adds the fields every write refreshes: the access time, the session's
+	 * own timeout and the expireAt date the TTL index reaps it at. Sessions
+	 * that never expire have no expireAt.
+	 */
+	private void putAccess(SessionWrite write, BasicDBObject set,
+			BasicDBObject unset) {
+		long now = System.currentTimeMillis();
+		int maxInactive = write.getMaxInactiveInterval();
+		set.put(schema.lastModified, schema.time(now));
+		set.put(schema.maxInactive, maxInactive);
+		if (maxInactive > 0) {
+			set.put(schema.expireAt, new Date(now + maxInactive * 1000L));
+		} else {
+			unset.put(schema.expireAt, 1);
+		}
+	}
+
+	/**
+	 * Adds the index key fields a write changes: the principal if it has
+	 * changed, and indexed attributes that were set or removed, or all of
+	 * them for a full write.
+	 */
+	private void putKeys(SessionWrite write, BasicDBObject set,
+			BasicDBObject unset, boolean full) throws IOException {
+		if (write.getPrincipal() != null) {
+			set.put(schema.principal, write.getPrincipal());
+		}
+		for (String name : indexedAttributeNames) {
+			Object value = write.getData().get(name);
+			if (value == null) {
+				if (full || write.getRemoved().contains(name)) {
+					unset.put(keyField(name), 1);
+				}
+			} else if (full || write.getChanged().contains(name)) {
+				set.put(keyField(name), keyValue(value));
+			}
+		}
+	}
+
+	private String keyValue(Object value) throws IOException {
+		if (value instanceof EncodedAttribute) {
+			try {
+				value = decodeValue(((EncodedAttribute) value).getStored());
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Unable to decode indexed attribute", e);
+			}
+		}
+		return String.valueOf(value);
+	}
+
+	private String keyField(String attribute) {
+		return schema.keyPrefix + attributeField(attribute);
+	}
+
+	/**
+	 * Matches the sessions whose index key, 'principal' or one of the
+	 * indexedAttributes, has the given value.
+	 */
+	private BasicDBObject keyQuery(String key, String value) {
+		if ("principal".equals(key) && indexPrincipal) {
+			return new BasicDBObject(schema.principal, value);
+		} else if (indexedAttributeNames.contains(key)) {
+			return new BasicDBObject(keyField(key), value);
+		}
+		throw new IllegalArgumentException("Sessions are not indexed by "
+				+ key);
+	}
+
+	/**
+	 * Attribute names become field names in the per-attribute layout, so the
+	 * characters Mongo reserves in field names are escaped.
+	 */
+	static String attributeField(String name) {
+		return name.replace("%", "%25").replace(".", "%2E")
+				.replace("$", "%24");
+	}
+
+	static String attributeName(String field) {
+		return field.replace("%24", "$").replace("%2E", ".")
+				.replace("%25", "%");
+	}
+
+	/**
+	 * Hashes the encoded form of every attribute value that could be mutated
+	 * in place, so changes made without calling setAttribute are still
+	 * detected. Immutable values can only change through setAttribute.
+	 */
+	private Map<String, Integer> hashMutableAttributes(Map<Object, Object> data)
+			throws IOException {
+		Map<String, Integer> hashes = new HashMap<String, Integer>();
+		for (Map.Entry<Object, Object> entry : data.entrySet()) {
+			Object value = entry.getValue();
+			if (!isImmutable(value) && !(value instanceof EncodedAttribute)) {
+				hashes.put(entry.getKey().toString(),
+						hashEncoded(encodeValue(value)));
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * Encodes every attribute value the application could still mutate,
+	 * recording the hash of each, so a write can be queued and merged
+	 * without racing requests that go on changing the session. Immutable
+	 * values and attributes still in their stored form are kept as they are.
+	 */
+	private Map<Object, Object> encodeMutableAttributes(
+			Map<Object, Object> data, Map<String, Integer> hashes)
+			throws IOException {
+		Map<Object, Object> encoded = new HashMap<Object, Object>(data);
+		for (Map.Entry<Object, Object> entry : encoded.entrySet()) {
+			Object value = entry.getValue();
+			if (!isImmutable(value) && !(value instanceof EncodedAttribute)) {
+				Object stored = encodeValue(value);
+				hashes.put(entry.getKey().toString(), hashEncoded(stored));
+				entry.setValue(new EncodedAttribute(stored));
+			}
+		}
+		return Collections.unmodifiableMap(encoded);
+	}
+
+	/**
+	 * Puts back the GridFS reference of each offloaded attribute that was
+	 * decoded but has not changed, so writing the session in full does not
+	 * upload it again. References of changed attributes are forgotten.
+	 */
+	private Map<Object, Object> keepBlobReferences(MongoSession session,
+			Map<Object, Object> data, Set<String> changed) {
+		Map<String, DBObject> references = session.getBlobReferences();
+		if (references.isEmpty()) {
+			return data;
+		}
+		Map<Object, Object> kept = new HashMap<Object, Object>(data);
+		for (Map.Entry<String, DBObject> entry : references.entrySet()) {
+			String name = entry.getKey();
+			if (changed.contains(name) || !kept.containsKey(name)) {
+				references.remove(name);
+			} else {
+				kept.put(name, new EncodedAttribute(entry.getValue()));
+			}
+		}
+		return Collections.unmodifiableMap(kept);
+	}
+
+	private static long encodedSize(Object encoded) {
+		if (AttributeBlobStore.isReference(encoded)) {
+			return AttributeBlobStore.length((DBObject) encoded);
+		}
+		if (encoded instanceof Binary) {
+			return ((Binary) encoded).length();
+		}
+		return encoded instanceof byte[] ? ((byte[]) encoded).length
+				: ((String) encoded).length();
+	}
+
+	int hashEncoded(Object encoded) {
+		if (AttributeBlobStore.isReference(encoded)) {
+			return AttributeBlobStore.hash((DBObject) encoded);
+		}
+		return encoded instanceof Binary ? Arrays.hashCode(((Binary) encoded)
+				.getData()) : encoded.hashCode();
+	}
+
+	/**
+	 * Records the encoded size of each attribute of a sampled save, whether
+	 * it changed and how long it took to encode. Attributes nobody read are
+	 * still encoded from loading and only measured. Without deltaPersistence
+	 * every attribute is written when the session changed at all.
+	 */
+	private void profile(Map<Object, Object> data, Set<String> changed,
+			boolean sessionChanged) {
+		for (Map.Entry<Object, Object> entry : data.entrySet()) {
+			String name = entry.getKey().toString();
+			Object value = entry.getValue();
+			long start = System.nanoTime();
+			Object encoded;
+			try {
+				encoded = encodeValue(value);
+			} catch (IOException e) {
+				// The save itself reports it
+				continue;
+			}
+			long nanos = value instanceof EncodedAttribute ? -1 : System
+					.nanoTime() - start;
+			boolean attributeChanged = changed.contains(name);
+			profiler.record(name, attributeChanged,
+					deltaPersistence ? attributeChanged : sessionChanged,
+					encodedSize(encoded), nanos);
+		}
+	}
+
+	/**
+	 * Encodes a value for storage, as BSON binary of the session payload
+	 * subtype if the serializer supports it, otherwise as a JSON string.
+	 */
+	private Object encodeValue(Object value) throws IOException {
+		if (value instanceof EncodedAttribute) {
+			return ((EncodedAttribute) value).getStored();
+		}
+		if (serializer instanceof BinarySerializer) {
+			return new Binary(PAYLOAD_SUBTYPE,
+					((BinarySerializer) serializer).encode(value));
+		}
+		return JSON.toJSONString(value);
+	}
+
+	/**
+	 * Moves an encoded attribute value to GridFS if it is larger than
+	 * offloadThreshold, returning the reference to store in its place.
+	 */
+	private Object offload(String id, Object encoded) {
+		if (offloadThreshold < 0 || AttributeBlobStore.isReference(encoded)
+				|| encodedSize(encoded) <= offloadThreshold) {
+			return encoded;
+		}
+		return getBlobStore().store(id, encoded, hashEncoded(encoded));
+	}
+
+	/**
+	 * Created on first use, so GridFS collections only appear once values
+	 * are offloaded.
+	 */
+	private AttributeBlobStore getBlobStore() {
+		AttributeBlobStore store = blobStore;
+		if (store == null) {
+			synchronized (this) {
+				if (blobStore == null) {
+					blobStore = new AttributeBlobStore(db);
+				}
+				store = blobStore;
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Encodes all attributes as the single value of the whole-document
+	 * layout. JSON is put together from the attributes already encoded,
+	 * binary payloads have to decode them first.
+	 */
+	private Object encodeWhole(Map<Object, Object> data) throws IOException {
+		if (serializer instanceof BinarySerializer) {
+			return encodeValue(decodeAll(data));
+		}
+		StringBuilder json = new StringBuilder("{");
+		for (Map.Entry<Object, Object> entry : data.entrySet()) {
+			Object value = entry.getValue();
+			Object stored = value instanceof EncodedAttribute ? ((EncodedAttribute) value)
+					.getStored() : null;
+			if (stored != null && !(stored instanceof String)) {
+				return encodeValue(decodeAll(data));
+			}
+			if (json.length() > 1) {
+				json.append(',');
+			}
+			json.append(JSON.toJSONString(entry.getKey().toString()))
+					.append(':')
+					.append(stored != null ? (String) stored : JSON
+							.toJSONString(value));
+		}
+		return json.append('}').toString();
+	}
+
+	/**
+	 * Decodes attributes still in their stored per-attribute form, so the
+	 * whole map can be encoded as a single value.
+	 */
+	private Map<Object, Object> decodeAll(Map<Object, Object> data)
+			throws IOException {
+		Map<Object, Object> decoded = new HashMap<Object, Object>(data);
+		for (Map.Entry<Object, Object> entry : decoded.entrySet()) {
+			if (entry.getValue() instanceof EncodedAttribute) {
+				try {
+					entry.setValue(decodeValue(((EncodedAttribute) entry
+							.getValue()).getStored()));
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Unable to decode attribute "
+							+ entry.getKey(), e);
+				}
+			}
+		}
+		return decoded;
+	}
+
+	Object decodeValue(Object stored) throws IOException,
+			ClassNotFoundException {
+		if (AttributeBlobStore.isReference(stored)) {
+			stored = fetchBlob((DBObject) stored);
+			metrics.bytesRead(encodedSize(stored));
+		}
+		if (stored instanceof String) {
+			return JSON.parse((String) stored);
+		}
+		byte[] bytes = stored instanceof Binary ? ((Binary) stored).getData()
+				: (byte[]) stored;
+		if (!(serializer instanceof BinarySerializer)) {
+			throw new IOException(
+					"Session stored in binary, a BinarySerializer is required");
+		}
+		return ((BinarySerializer) serializer).decode(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Reads an offloaded attribute value from GridFS, through the circuit
+	 * breaker like any other Mongo call.
+	 */
+	private Object fetchBlob(DBObject reference) throws IOException {
+		long start = beforeCall();
+		boolean failed = false;
+		try {
+			return getBlobStore().fetch(reference);
+		} catch (MongoException e) {
+			failed = true;
+			throw e;
+		} finally {
+			afterCall(start, failed);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<Object, Object> decodeData(Object stored) throws IOException,
+			ClassNotFoundException {
+		if (stored instanceof String) {
+			return JSON.parseObject((String) stored,
+					new TypeReference<Map<Object, Object>>() {
+					});
+		}
+		return (Map<Object, Object>) decodeValue(stored);
+	}
+
+	private static boolean isImmutable(Object value) {
+		return value == null || value instanceof String
+				|| value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte
+				|| value instanceof Double || value instanceof Float
+				|| value instanceof Boolean || value instanceof Character
+				|| value instanceof Enum;
+	}
+
+	/**
+	 * Remembers the session a request loaded, for its later loads.
+	 */
+	private void track(String id, StandardSession session) {
+		if (inFlight != null) {
+			inFlight.put(id, session);
+		} else {
+			currentSession.set(session);
+		}
+	}
+
+	/**
+	 * Forgets the current thread's session once it is saved or removed.
+	 * Sessions kept per request are let go of when the request ends.
+	 */
+	private void untrack() {
+		if (inFlight == null) {
+			currentSession.remove();
+		}
+	}
+
+	/**
+	 * Called by the tracker valve as a request for a session arrives. Returns
+	 * whether the session is kept for the request, which the valve must then
+	 * end with endRequest.
+	 */
+	boolean beginRequest(String id) {
+		InFlightSessions requests = inFlight;
+		if (requests == null) {
+			return false;
+		}
+		requests.acquire(id);
+		return true;
+	}
+
+	void endRequest(String id) {
+		InFlightSessions requests = inFlight;
+		if (requests != null) {
+			requests.release(id);
+		}
+	}
+
+	public Session loadSession(String id) throws IOException {
+
+		if (id == null || id.length() == 0) {
+			return createEmptySession();
+		}
+
+		StandardSession current = inFlight != null ? inFlight.get(id)
+				: currentSession.get();
+		boolean hit = current != null && id.equals(current.getId());
+		metrics.threadLocalLookup(hit);
+
+		if (hit) {
+			return current;
+		} else if (current != null && inFlight == null) {
+			currentSession.remove();
+		}
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			SessionWrite pending = writeBehindQueue == null ? null
+					: writeBehindQueue.get(id);
+			if (pending == null && fallbackStore != null) {
+				pending = fallbackStore.get(id);
+			}
+			NearCache.Entry entry = null;
+			boolean rewriteInFull = false;
+
+			if (pending != null) {
+				if (pending.isDelete()) {
+					if (log.isLoggable(Level.FINE)) {
+						log.fine("Session " + id + " is pending removal");
+					}
+					StandardSession ret = getNewSession();
+					ret.setId(id);
+					track(id, ret);
+					failed = false;
+					return ret;
+				}
+				if (log.isLoggable(Level.FINE)) {
+					log.fine("Using pending write of session " + id);
+				}
+				entry = new NearCache.Entry(pending.getVersion(),
+						pending.getData(), null,
+						pending.getMaxInactiveInterval(),
+						pending.getCreationTime(), 0, pending.getPrincipal(), 0);
+				rewriteInFull = !pending.isStored();
+			} else {
+				DBObject dbsession = null;
+				boolean available = true;
+				try {
+					long call = beforeCall();
+					boolean callFailed = false;
+					try {
+						entry = validCachedEntry(id);
+						if (entry == null) {
+							dbsession = findDocument(id);
+						}
+					} catch (MongoException e) {
+						callFailed = true;
+						throw e;
+					} finally {
+						afterCall(call, callFailed);
+					}
+				} catch (CircuitOpenException e) {
+					available = false;
+				} catch (MongoException e) {
+					if (fallbackStore == null) {
+						throw e;
+					}
+					log.log(Level.WARNING, "Error loading session " + id, e);
+					available = false;
+				}
+
+				if (!available) {
+					// Serve whatever copy is cached, however old
+					entry = nearCache == null ? null : nearCache.get(id);
+					if (log.isLoggable(Level.FINE)) {
+						log.fine("Mongo unavailable, "
+								+ (entry == null ? "starting session " + id
+										+ " over" : "using cached copy of session "
+										+ id));
+					}
+				} else if (entry != null) {
+					if (log.isLoggable(Level.FINE)) {
+						log.fine("Using cached copy of session " + id);
+					}
+				}
+
+				if (entry == null && dbsession == null) {
+					if (log.isLoggable(Level.FINE)) {
+						log.fine("Session " + id + " not found in Mongo");
+					}
+					StandardSession ret = getNewSession();
+					ret.setId(id);
+					track(id, ret);
+					failed = false;
+					return ret;
+				}
+
+				if (entry == null) {
+					entry = readDocument(dbsession);
+					rewriteInFull = deltaPersistence
+							&& dbsession.get(schema.attrs) == null;
+					if (nearCache != null && !rewriteInFull) {
+						nearCache.put(id, entry);
+					}
+				}
+			}
+
+			MongoSession session = buildSession(id, entry, rewriteInFull);
+			session.access();
+
+			if (log.isLoggable(Level.FINE)) {
+				log.fine("Session Contents [" + session.getId() + "]:");
+				for (Object name : Collections
+						.list(session.getAttributeNames())) {
+					log.fine("  " + name);
+				}
+				log.fine("Loaded session id " + id);
+			}
+
+			track(id, session);
+			failed = false;
+			return session;
+		} catch (IOException e) {
+			log.severe(e.getMessage());
+			throw e;
+		} catch (ClassNotFoundException ex) {
+			log.log(Level.SEVERE, "Unable to deserialize session ", ex);
+			throw new IOException("Unable to deserializeInto session", ex);
+		} finally {
+			metrics.record(SessionStoreMetrics.Operation.LOAD, start, failed);
+		}
+	}
+
+	private DBObject findDocument(String id) throws IOException {
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Loading session " + id + " from Mongo");
+		}
+		BasicDBObject query = idQuery(id);
+
+		DBObject dbsession = findOne(getCollection(id), id, query, null);
+		if (dbsession == null) {
+			dbsession = migrator.migrate(id);
+		}
+		return dbsession;
+	}
+
+	/**
+	 * Reads a session document with the load read preference.
+	 */
+	private DBObject findOne(DBCollection collection, String id,
+			DBObject query, DBObject fields) throws IOException {
+		return checkWritten(collection, id, query, fields,
+				collection.findOne(query, fields, loadPreference));
+	}
+
+	/**
+	 * Returns a document read with the load read preference, or reads it
+	 * again from the primary if it came from a secondary that is older than
+	 * the version last written here, or is missing though written here.
+	 */
+	private DBObject checkWritten(DBCollection collection, String id,
+			DBObject query, DBObject fields, DBObject found) throws IOException {
+		if (writtenVersions == null) {
+			return found;
+		}
+		Number version = found == null ? null : (Number) found.get(DocumentSchema
+				.of(found).version);
+		boolean stale = writtenVersions.isStale(id, version);
+		metrics.secondaryRead(stale);
+		if (!stale) {
+			return found;
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Secondary copy of session " + id
+					+ " is behind, reading it from the primary");
+		}
+		return collection.findOne(query, fields, ReadPreference.primary());
+	}
+
+	/**
+	 * Reads the contents of a session document without decoding anything,
+	 * attributes are decoded by each session built from it.
+	 */
+	private NearCache.Entry readDocument(DBObject dbsession) {
+		DocumentSchema format = DocumentSchema.of(dbsession);
+		Map<Object, Object> data = new HashMap<Object, Object>();
+		DBObject attrs = (DBObject) dbsession.get(format.attrs);
+		Object payload = attrs == null ? dbsession.get(format.data) : null;
+		long size = 0;
+		if (attrs != null) {
+			for (String field : attrs.keySet()) {
+				Object stored = attrs.get(field);
+				data.put(attributeName(field), new EncodedAttribute(stored));
+				size += encodedSize(stored);
+			}
+		} else if (payload != null) {
+			size = encodedSize(payload);
+		}
+		metrics.bytesRead(size);
+
+		Number version = (Number) dbsession.get(format.version);
+		Number maxInactive = (Number) dbsession.get(format.maxInactive);
+		Object created = dbsession.get(format.created);
+		return new NearCache.Entry(version == null ? 0 : version.longValue(),
+				data, payload, maxInactive == null ? getMaxInactiveInterval()
+						: maxInactive.intValue(),
+				created == null ? System.currentTimeMillis() : format
+						.millis(created), format.millis(dbsession
+						.get(format.lastModified)),
+				(String) dbsession.get(format.principal),
+				System.currentTimeMillis());
+	}
+
+	/**
+	 * Creates a session holding the given contents, marked as matching what
+	 * is stored in Mongo unless it has to be rewritten in full.
+	 */
+	private MongoSession buildSession(String id, NearCache.Entry entry,
+			boolean rewriteInFull) throws IOException, ClassNotFoundException {
+		MongoSession session = (MongoSession) getNewSession();
+		session.setValid(true);
+		session.setId(id);
+		session.setCreationTime(entry.getCreationTime());
+		session.setMaxInactiveInterval(entry.getMaxInactiveInterval());
+		session.setNew(false);
+
+		Map<Object, Object> data;
+		Map<String, Integer> hashes;
+		if (entry.getPayload() != null) {
+			// The single-field layout can only be decoded as a whole, mutable
+			// values are hashed so changes made in place are seen on save
+			data = decodeData(entry.getPayload());
+			hashes = hashMutableAttributes(data);
+		} else {
+			// Encoded attributes are hashed when first decoded
+			data = new HashMap<Object, Object>(entry.getData());
+			hashes = Collections.emptyMap();
+		}
+		serializer.deserializeInto(data, session);
+		session.markClean(hashes);
+		session.setVersion(entry.getVersion());
+		session.setStoredMaxInactiveInterval(entry.getMaxInactiveInterval());
+		session.setStoredAccessTime(entry.getLastModified());
+		session.setStoredPrincipal(entry.getPrincipal());
+		if (rewriteInFull) {
+			// Legacy single-field document or one not written yet, write it
+			// in full on next save
+			session.setStored(false);
+		}
+		return session;
+	}
+
+	/**
+	 * Returns the near-cache entry for a session if it is recent enough to
+	 * trust, or if its version still matches the stored document. Only _id
+	 * and version are fetched for the check.
+	 */
+	private NearCache.Entry validCachedEntry(String id) throws IOException {
+		if (nearCache == null) {
+			return null;
+		}
+		NearCache.Entry cached = nearCache.get(id);
+		if (cached == null) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		if (now - cached.getValidated() < nearCacheTrustMillis) {
+			return cached;
+		}
+
+		BasicDBObject query = idQuery(id);
+		DBObject stored = findOne(getCollection(id), id, query,
+				new BasicDBObject(schema.version, 1));
+		Number version = stored == null ? null : (Number) stored
+				.get(schema.version);
+		if (version != null && version.longValue() == cached.getVersion()) {
+			cached.setValidated(now);
+			return cached;
+		}
+
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Cached copy of session " + id + " is stale");
+		}
+		nearCache.remove(id);
+		return null;
+	}
+
+	public String[] keys() throws IOException {
+
+		BasicDBObject restrict = new BasicDBObject();
+		restrict.put("_id", 1);
+
+		// A session being moved between stripes can briefly be in both
+		Set<String> ret = new LinkedHashSet<String>();
+
+		for (DBCollection collection : getAllCollections()) {
+			DBCursor cursor = collection.find(new BasicDBObject(), restrict)
+					.batchSize(cursorBatchSize)
+					.setReadPreference(loadPreference);
+			try {
+				while (cursor.hasNext()) {
+					ret.add(cursor.next().get("_id").toString());
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	public long getSessionCount() throws IOException {
+		long count = 0;
+		for (DBCollection collection : getAllCollections()) {
+			count += collection.count();
+		}
+		return count;
+	}
+
+	@Override
+	public int getActiveSessions() {
+		try {
+			return (int) Math.min(getSessionCount(), Integer.MAX_VALUE);
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Error counting sessions", e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Streams every stored session, built straight from the documents the
+	 * cursor returns in batches of cursorBatchSize. Attributes of the
+	 * per-attribute layout are only decoded when read.
+	 */
+	public SessionCursor<Session> iterateSessions() throws IOException {
+		List<DBCursor> cursors = new ArrayList<DBCursor>();
+		for (DBCollection collection : getAllCollections()) {
+			cursors.add(collection.find().batchSize(cursorBatchSize)
+					.setReadPreference(loadPreference));
+		}
+		return new SessionCursor<Session>(cursors,
+				new SessionCursor.Converter<Session>() {
+					public Session convert(DBObject document) throws Exception {
+						DocumentSchema format = DocumentSchema.of(document);
+						return buildSession(DocumentSchema.sessionId(document
+								.get("_id")), readDocument(document),
+								format != schema || deltaPersistence
+										&& document.get(format.attrs) == null);
+					}
+				});
+	}
+
+	/**
+	 * Streams the metadata of every stored session without fetching any
+	 * attributes.
+	 */
+	public SessionCursor<SessionInfo> iterateSessionInfo() throws IOException {
+		return infoCursor(new BasicDBObject(), 0);
+	}
+
+	/**
+	 * Returns up to limit sessions in id order, starting after the given id
+	 * or from the beginning if it is null. Passing the last id of one page
+	 * fetches the next one without skipping over documents.
+	 */
+	public List<SessionInfo> listSessionInfo(String afterId, int limit)
+			throws IOException {
+		BasicDBObject query = new BasicDBObject();
+		if (afterId != null) {
+			query.put("_id", new BasicDBObject("$gt", schema.id(afterId)));
+		}
+		return infoPage(query, limit);
+	}
+
+	/**
+	 * Counts the sessions whose index key has the given value. The key is
+	 * 'principal', with indexPrincipal set, or one of the indexedAttributes.
+	 */
+	public long countSessionsByKey(String key, String value)
+			throws IOException {
+		BasicDBObject query = keyQuery(key, value);
+		long count = 0;
+		for (DBCollection collection : getAllCollections()) {
+			count += collection.getCount(query, null, loadPreference);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns up to limit sessions whose index key has the given value, in id
+	 * order, without fetching their attributes.
+	 */
+	public List<SessionInfo> listSessionsByKey(String key, String value,
+			int limit) throws IOException {
+		return infoPage(keyQuery(key, value), limit);
+	}
+
+	/**
+	 * Removes every session whose index key has the given value, for example
+	 * to log a user out everywhere, and tells listeners they were destroyed.
+	 * Sessions are found with the key's index and removed sweepPageSize at a
+	 * time. Returns the number removed.
+	 */
+	public int expireSessionsByKey(String key, String value)
+			throws IOException {
+		int removed = expirySweeper.expire(keyQuery(key, value));
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Expired " + removed + " sessions with " + key + " "
+					+ value);
+		}
+		return removed;
+	}
+
+	/**
+	 * Returns the first limit sessions matching a query in id order, across
+	 * all stripes.
+	 */
+	private List<SessionInfo> infoPage(DBObject query, int limit)
+			throws IOException {
+		List<SessionInfo> page = new ArrayList<SessionInfo>(limit);
+		SessionCursor<SessionInfo> cursor = infoCursor(query, limit);
+		try {
+			while (cursor.hasNext()) {
+				page.add(cursor.next());
+			}
+		} finally {
+			cursor.close();
+		}
+		if (getAllCollections().size() > 1) {
+			// Each stripe returned its own first page, keep the lowest ids
+			Collections.sort(page, new Comparator<SessionInfo>() {
+				public int compare(SessionInfo a, SessionInfo b) {
+					return a.getId().compareTo(b.getId());
+				}
+			});
+			if (page.size() > limit) {
+				page.subList(limit, page.size()).clear();
+			}
+		}
+		return page;
+	}
+
+	private SessionCursor<SessionInfo> infoCursor(DBObject query, int limit)
+			throws IOException {
+		BasicDBObject fields = new BasicDBObject();
+		for (DocumentSchema format : new DocumentSchema[] {
+				DocumentSchema.LONG, DocumentSchema.COMPACT }) {
+			fields.put(format.created, 1);
+			fields.put(format.lastModified, 1);
+			fields.put(format.maxInactive, 1);
+			fields.put(format.size, 1);
+		}
+
+		List<DBCursor> cursors = new ArrayList<DBCursor>();
+		for (DBCollection collection : getAllCollections()) {
+			DBCursor cursor = collection.find(query, fields)
+					.sort(new BasicDBObject("_id", 1))
+					.setReadPreference(loadPreference)
+					.batchSize(Math.min(limit > 0 ? limit : cursorBatchSize,
+							cursorBatchSize));
+			if (limit > 0) {
+				cursor.limit(limit);
+			}
+			cursors.add(cursor);
+		}
+		return new SessionCursor<SessionInfo>(cursors,
+				new SessionCursor.Converter<SessionInfo>() {
+					public SessionInfo convert(DBObject document) {
+						return toSessionInfo(document);
+					}
+				});
+	}
+
+	private SessionInfo toSessionInfo(DBObject document) {
+		DocumentSchema format = DocumentSchema.of(document);
+		Object created = document.get(format.created);
+		Object lastModified = document.get(format.lastModified);
+		Number maxInactive = (Number) document.get(format.maxInactive);
+		Number size = (Number) document.get(format.size);
+		return new SessionInfo(DocumentSchema.sessionId(document.get("_id")),
+				created == null ? -1 : format.millis(created),
+				lastModified == null ? -1 : format.millis(lastModified),
+				maxInactive == null ? getMaxInactiveInterval() : maxInactive
+						.intValue(), size == null ? -1 : size.longValue());
+	}
+
+	/**
+	 * Returns the collection a session is stored in. Ids are hashed with the
+	 * String hash every JVM computes the same way, so all nodes agree.
+	 */
+	private DBCollection getCollection(String id) {
+		return collections[stripe(id, collections.length)];
+	}
+
+	/**
+	 * Returns the collection a session was stored in under previousStripes,
+	 * or null if that is where it lives now.
+	 */
+	private DBCollection getPreviousCollection(String id) {
+		if (previousCollections == null) {
+			return null;
+		}
+		DBCollection previous = previousCollections[stripe(id,
+				previousCollections.length)];
+		return previous.getFullName().equals(
+				getCollection(id).getFullName()) ? null : previous;
+	}
+
+	/**
+	 * Returns every collection that can hold sessions, the previous stripes
+	 * included while sessions are being moved.
+	 */
+	private List<DBCollection> getAllCollections() {
+		Map<String, DBCollection> all = new LinkedHashMap<String, DBCollection>();
+		for (DBCollection collection : collections) {
+			all.put(collection.getFullName(), collection);
+		}
+		if (previousCollections != null) {
+			for (DBCollection collection : previousCollections) {
+				all.put(collection.getFullName(), collection);
+			}
+		}
+		return new ArrayList<DBCollection>(all.values());
+	}
+
+	static int stripe(String id, int count) {
+		if (count == 1) {
+			return 0;
+		}
+		int h = id.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return (h & Integer.MAX_VALUE) % count;
+	}
+
+	/**
+	 * Resolves the collections of a stripe count. A single stripe is the
+	 * original sessions collection.
+	 */
+	private DBCollection[] stripeCollections(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("Invalid stripe count " + count);
+		}
+		DBCollection[] stripeCollections = new DBCollection[count];
+		if (count == 1) {
+			stripeCollections[0] = db.getCollection("sessions");
+		} else if ("collection".equals(stripeMode)) {
+			for (int i = 0; i < count; i++) {
+				stripeCollections[i] = db.getCollection("sessions_" + i);
+			}
+		} else if ("database".equals(stripeMode)) {
+			for (int i = 0; i < count; i++) {
+				stripeCollections[i] = db.getSisterDB(getDatabase() + "_" + i)
+						.getCollection("sessions");
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown stripe mode "
+					+ stripeMode);
+		}
+		return stripeCollections;
 	}
 
-	private DBCollection getCollection() throws IOException {
-		return db.getCollection("sessions");
+	/**
+	 * Converts up to limit documents of the long schema to the compact one,
+	 * to move a store over without waiting for every session to be loaded
+	 * or to expire. Returns the number converted.
+	 */
+	public int convertToCompactSchema(int limit) {
+		return migrator.convertToCompactSchema(limit);
 	}
 
 	public void load() throws ClassNotFoundException, IOException {
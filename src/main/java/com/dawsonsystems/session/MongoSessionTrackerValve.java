@@ -25,42 +25,120 @@ import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.ValveBase;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 public class MongoSessionTrackerValve extends ValveBase {
   private static Logger log = Logger.getLogger("MongoSessionValve");
+  // Request note holding the listener that saves an async request's session
+  private static final String ASYNC_LISTENER_NOTE = "com.dawsonsystems.session.AsyncListener";
+  // Request note holding the session id the manager keeps the session under
+  // for this request, with requestScopedTracking
+  private static final String TRACKED_NOTE = "com.dawsonsystems.session.Tracked";
   private MongoSessionManager manager;
 
+  public MongoSessionTrackerValve() {
+    super(true);
+  }
+
   public void setMongoManager(MongoSessionManager manager) {
     this.manager = manager;
   }
 
   @Override
   public void invoke(Request request, Response response) throws IOException, ServletException {
+    String requested = request.getRequestedSessionId();
+    if (requested != null && request.getNote(TRACKED_NOTE) == null
+        && manager.beginRequest(requested)) {
+      request.setNote(TRACKED_NOTE, requested);
+    }
     try {
       getNext().invoke(request, response);
     } finally {
-      storeSession(request, response);
+      if (request.isAsyncStarted()) {
+        deferStore(request, response);
+      } else if (request.getNote(ASYNC_LISTENER_NOTE) == null) {
+        try {
+          storeSession(request, response);
+        } finally {
+          endRequest(request);
+        }
+      }
+      // else a dispatch of an async request, whose listener saves on completion
+    }
+  }
+
+  private void endRequest(Request request) {
+    String tracked = (String) request.getNote(TRACKED_NOTE);
+    if (tracked != null) {
+      request.removeNote(TRACKED_NOTE);
+      manager.endRequest(tracked);
     }
   }
 
+  /**
+   * The request carries on after this thread returns, so the session is saved
+   * by a listener once the async cycle completes, which the container signals
+   * after errors and timeouts too. The session stays out of this thread's
+   * ThreadLocal, as whichever thread completes the request does the save.
+   */
+  private void deferStore(final Request request, final Response response) {
+    if (request.getNote(ASYNC_LISTENER_NOTE) == null) {
+      AsyncListener listener = new AsyncListener() {
+        public void onComplete(AsyncEvent event) throws IOException {
+          try {
+            storeSession(request, response);
+          } finally {
+            endRequest(request);
+          }
+        }
+
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        public void onError(AsyncEvent event) {
+        }
+
+        public void onStartAsync(AsyncEvent event) {
+          // Listeners are dropped when the request starts async again
+          event.getAsyncContext().addListener(this, request, response);
+        }
+      };
+      request.setNote(ASYNC_LISTENER_NOTE, listener);
+      request.getAsyncContext().addListener(listener, request, response);
+      if (log.isLoggable(Level.FINE)) {
+        log.fine("Async request started, deferring save of session " + request.getRequestedSessionId());
+      }
+    }
+    manager.getCurrentSession().remove();
+  }
+
   private void storeSession(Request request, Response response) throws IOException {
     final Session session = request.getSessionInternal(false);
 
     if (session != null) {
+        boolean fine = log.isLoggable(Level.FINE);
         if (session.isValid()) {
-          log.fine("Request with session completed, saving session " + session.getId());
+          if (fine) {
+            log.fine("Request with session completed, saving session " + session.getId());
+          }
           if (session.getSession() != null) {
-            log.fine("HTTP Session present, saving " + session.getId());
+            if (fine) {
+              log.fine("HTTP Session present, saving " + session.getId());
+            }
             manager.save(session);
-          } else {
+          } else if (fine) {
             log.fine("No HTTP Session present, Not saving " + session.getId());
           }
         } else {
-            log.fine("HTTP Session has been invalidated, removing :" + session.getId());
+            if (fine) {
+              log.fine("HTTP Session has been invalidated, removing :" + session.getId());
+            }
             manager.remove(session);
         }
     }
@@ -0,0 +1,141 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used cache of session contents held by this node,
+ * keyed by session id. Each entry records the document version it was read
+ * or written at so it can be validated cheaply against Mongo.
+ */
+public class NearCache {
+
+	public static class Entry {
+		private final long version;
+		private final Map<Object, Object> data;
+		private final Object payload;
+		private final int maxInactiveInterval;
+		private final long creationTime;
+		private final long lastModified;
+		private final String principal;
+		private volatile long validated;
+
+		public Entry(long version, Map<Object, Object> data, Object payload,
+				int maxInactiveInterval, long creationTime, long lastModified,
+				String principal, long validated) {
+			this.version = version;
+			this.data = data;
+			this.payload = payload;
+			this.maxInactiveInterval = maxInactiveInterval;
+			this.creationTime = creationTime;
+			this.lastModified = lastModified;
+			this.principal = principal;
+			this.validated = validated;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Attributes in their encoded form, or immutable values, so sessions
+		 * built from the entry never share attribute objects.
+		 */
+		public Map<Object, Object> getData() {
+			return data;
+		}
+
+		/**
+		 * The encoded single-field payload the attributes are held in
+		 * instead, null for entries kept per attribute.
+		 */
+		public Object getPayload() {
+			return payload;
+		}
+
+		public int getMaxInactiveInterval() {
+			return maxInactiveInterval;
+		}
+
+		public long getCreationTime() {
+			return creationTime;
+		}
+
+		/**
+		 * The access time stored with the document, 0 if not known.
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * The indexed principal name stored with the document, if any.
+		 */
+		public String getPrincipal() {
+			return principal;
+		}
+
+		public long getValidated() {
+			return validated;
+		}
+
+		public void setValidated(long validated) {
+			this.validated = validated;
+		}
+	}
+
+	private final Map<String, Entry> entries;
+
+	public NearCache(final int maxSize) {
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, NearCache.Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public synchronized Entry get(String id) {
+		return entries.get(id);
+	}
+
+	public synchronized void put(String id, Entry entry) {
+		entries.put(id, entry);
+	}
+
+	public synchronized void remove(String id) {
+		entries.remove(id);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,213 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves session documents to where they are written now: from the stripe
+ * they had under previousStripes, and from the long schema to the compact
+ * one. Sessions are moved as they are loaded, and documents of the long
+ * schema in bulk by convertToCompactSchema.
+ */
+final class SchemaMigrator {
+
+	/**
+	 * The collections of the manager the migrator works for.
+	 */
+	interface Stripes {
+		DBCollection collection(String id);
+
+		/**
+		 * The collection a session was stored in under previousStripes, or
+		 * null if that is where it lives now.
+		 */
+		DBCollection previousCollection(String id);
+
+		List<DBCollection> collections();
+	}
+
+	private static final Logger log = Logger.getLogger("MongoManager");
+
+	private final Stripes stripes;
+	private final DocumentSchema schema;
+	private final WriteConcern createConcern;
+	private final WriteConcern removeConcern;
+	private final int batchSize;
+	// Whether documents of the long schema may be left while the compact
+	// schema is written, so expiry still has to match them
+	private volatile boolean longDocuments;
+
+	SchemaMigrator(Stripes stripes, DocumentSchema schema,
+			WriteConcern createConcern, WriteConcern removeConcern,
+			int batchSize) {
+		this.stripes = stripes;
+		this.schema = schema;
+		this.createConcern = createConcern;
+		this.removeConcern = removeConcern;
+		this.batchSize = batchSize;
+		this.longDocuments = schema.compact && findLongDocuments();
+	}
+
+	boolean hasLongDocuments() {
+		return longDocuments;
+	}
+
+	/**
+	 * Looks for documents of the long schema in the collections still
+	 * carrying its lastmodified index. Stores created with the compact
+	 * schema, or whose index was dropped once converted, are not scanned.
+	 */
+	private boolean findLongDocuments() {
+		BasicDBObject keys = new BasicDBObject(
+				DocumentSchema.LONG.lastModified, 1);
+		for (DBCollection collection : stripes.collections()) {
+			for (DBObject index : collection.getIndexInfo()) {
+				if (keys.equals(index.get("key"))
+						&& collection.findOne(longDocumentQuery(),
+								new BasicDBObject("_id", 1)) != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Matches documents of the long schema. Their lastmodified is a number
+	 * of milliseconds, so the range is answered from the lastmodified index
+	 * without touching compact documents.
+	 */
+	private static BasicDBObject longDocumentQuery() {
+		return new BasicDBObject(DocumentSchema.LONG.lastModified,
+				new BasicDBObject("$gt", 0));
+	}
+
+	/**
+	 * Looks for a session missing from where it is written now: in the
+	 * stripe it had under previousStripes, or in the other schema. Moves it
+	 * over, converted to the current schema, if it is found.
+	 */
+	DBObject migrate(String id) {
+		Object storedId = schema.id(id);
+		// The id it has in the other schema, if that differs. ObjectId
+		// equals the string of its hex form, so the types are compared.
+		Object otherId = schema.compact ? id : DocumentSchema.COMPACT.id(id);
+		if (otherId.getClass() == storedId.getClass()) {
+			otherId = null;
+		}
+		DBCollection previous = stripes.previousCollection(id);
+		List<DBCollection> sources = new ArrayList<DBCollection>();
+		List<Object> ids = new ArrayList<Object>();
+		if (otherId != null) {
+			sources.add(stripes.collection(id));
+			ids.add(otherId);
+		}
+		if (previous != null) {
+			sources.add(previous);
+			ids.add(storedId);
+			if (otherId != null) {
+				sources.add(previous);
+				ids.add(otherId);
+			}
+		}
+		for (int i = 0; i < sources.size(); i++) {
+			DBCollection source = sources.get(i);
+			BasicDBObject query = new BasicDBObject("_id", ids.get(i));
+			DBObject dbsession = source.findOne(query, null,
+					ReadPreference.primary());
+			if (dbsession != null) {
+				return move(source, dbsession);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes a session document to its stripe in the current schema and
+	 * removes the one it was read from, returning what was written.
+	 */
+	private DBObject move(DBCollection source, DBObject dbsession) {
+		Object sourceId = dbsession.get("_id");
+		String id = DocumentSchema.sessionId(sourceId);
+		if (DocumentSchema.of(dbsession) != schema) {
+			dbsession = schema.convert(dbsession, schema.id(id));
+		}
+		DBCollection target = stripes.collection(id);
+		target.save(dbsession, createConcern);
+		if (!target.getFullName().equals(source.getFullName())
+				|| sourceId.getClass() != dbsession.get("_id").getClass()) {
+			source.remove(new BasicDBObject("_id", sourceId), removeConcern);
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Moved session " + id + " from " + source.getFullName());
+		}
+		return dbsession;
+	}
+
+	/**
+	 * Converts up to limit documents of the long schema to the compact one.
+	 * Returns the number converted.
+	 */
+	int convertToCompactSchema(int limit) {
+		if (!schema.compact) {
+			throw new IllegalStateException("compactSchema is not set");
+		}
+		BasicDBObject query = longDocumentQuery();
+		int converted = 0;
+		for (DBCollection collection : stripes.collections()) {
+			if (converted >= limit) {
+				break;
+			}
+			DBCursor cursor = collection.find(query)
+					.batchSize(batchSize).limit(limit - converted);
+			try {
+				while (cursor.hasNext()) {
+					move(collection, cursor.next());
+					converted++;
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.fine("Converted " + converted
+					+ " sessions to the compact schema");
+		}
+		if (converted < limit && longDocuments) {
+			longDocuments = false;
+			log.info("No documents of the long schema are left, the "
+					+ "lastmodified_1 and expireAt_1 indexes can be dropped");
+		}
+		return converted;
+	}
+}
@@ -0,0 +1,93 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over stored sessions, fetching them from Mongo a batch at a time
+ * as the iteration advances. With striped storage the cursors of each stripe
+ * are read one after the other. Must be closed if not iterated to the end.
+ */
+public class SessionCursor<T> implements Iterator<T>, Closeable {
+
+	public interface Converter<T> {
+		T convert(DBObject document) throws Exception;
+	}
+
+	private final List<DBCursor> cursors;
+	private final Converter<T> converter;
+	private int current;
+
+	public SessionCursor(DBCursor cursor, Converter<T> converter) {
+		this(Collections.singletonList(cursor), converter);
+	}
+
+	public SessionCursor(List<DBCursor> cursors, Converter<T> converter) {
+		this.cursors = cursors;
+		this.converter = converter;
+	}
+
+	public boolean hasNext() {
+		while (current < cursors.size()) {
+			DBCursor cursor = cursors.get(current);
+			if (cursor.hasNext()) {
+				return true;
+			}
+			cursor.close();
+			current++;
+		}
+		return false;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		DBObject document = cursors.get(current).next();
+		try {
+			return converter.convert(document);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to read session "
+					+ document.get("_id"), e);
+		}
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() {
+		for (int i = current; i < cursors.size(); i++) {
+			cursors.get(i).close();
+		}
+	}
+}
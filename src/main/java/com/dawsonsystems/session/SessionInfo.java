@@ -0,0 +1,74 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+/**
+ * Metadata of a stored session, read without fetching or decoding any of its
+ * attributes.
+ */
+public class SessionInfo {
+	private final String id;
+	private final long creationTime;
+	private final long lastAccessedTime;
+	private final int maxInactiveInterval;
+	private final long size;
+
+	public SessionInfo(String id, long creationTime, long lastAccessedTime,
+			int maxInactiveInterval, long size) {
+		this.id = id;
+		this.creationTime = creationTime;
+		this.lastAccessedTime = lastAccessedTime;
+		this.maxInactiveInterval = maxInactiveInterval;
+		this.size = size;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public long getCreationTime() {
+		return creationTime;
+	}
+
+	public long getLastAccessedTime() {
+		return lastAccessedTime;
+	}
+
+	public int getMaxInactiveInterval() {
+		return maxInactiveInterval;
+	}
+
+	/**
+	 * Encoded size in bytes of the attributes as of the last time the
+	 * session was written in full.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return id + " created=" + creationTime + " lastAccessed="
+				+ lastAccessedTime + " maxInactive=" + maxInactiveInterval
+				+ " size=" + size;
+	}
+}
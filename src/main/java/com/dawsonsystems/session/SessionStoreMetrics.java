@@ -0,0 +1,233 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the operations of a session manager
+ * against Mongo, exposed over JMX. Recording is allocation free and safe
+ * from any number of request threads.
+ */
+public class SessionStoreMetrics implements SessionStoreMetricsMBean {
+
+	enum Operation {
+		LOAD, SAVE, REMOVE, EXPIRE_SCAN
+	}
+
+	private static final double NANOS_PER_MILLI = 1000000d;
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Operation
+			.values().length];
+	private final LongAdder[] errors = new LongAdder[Operation
+			.values().length];
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder expiredSessions = new LongAdder();
+	private final LongAdder threadLocalHits = new LongAdder();
+	private final LongAdder threadLocalLookups = new LongAdder();
+	private final LongAdder secondaryReads = new LongAdder();
+	private final LongAdder staleSecondaryReads = new LongAdder();
+
+	public SessionStoreMetrics() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+			errors[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records an operation that started at the given System.nanoTime().
+	 */
+	void record(Operation operation, long startNanos, boolean failed) {
+		latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+		if (failed) {
+			errors[operation.ordinal()].increment();
+		}
+	}
+
+	void bytesRead(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	void bytesWritten(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	void expired(long sessions) {
+		expiredSessions.add(sessions);
+	}
+
+	void threadLocalLookup(boolean hit) {
+		threadLocalLookups.increment();
+		if (hit) {
+			threadLocalHits.increment();
+		}
+	}
+
+	void secondaryRead(boolean stale) {
+		secondaryReads.increment();
+		if (stale) {
+			staleSecondaryReads.increment();
+		}
+	}
+
+	private long count(Operation operation) {
+		return latencies[operation.ordinal()].count();
+	}
+
+	private long errors(Operation operation) {
+		return errors[operation.ordinal()].sum();
+	}
+
+	private double millis(Operation operation, double quantile) {
+		return latencies[operation.ordinal()].percentile(quantile)
+				/ NANOS_PER_MILLI;
+	}
+
+	public long getLoadCount() {
+		return count(Operation.LOAD);
+	}
+
+	public long getLoadErrors() {
+		return errors(Operation.LOAD);
+	}
+
+	public double getLoadP50Millis() {
+		return millis(Operation.LOAD, 0.5);
+	}
+
+	public double getLoadP99Millis() {
+		return millis(Operation.LOAD, 0.99);
+	}
+
+	public double getLoadP999Millis() {
+		return millis(Operation.LOAD, 0.999);
+	}
+
+	public long getSaveCount() {
+		return count(Operation.SAVE);
+	}
+
+	public long getSaveErrors() {
+		return errors(Operation.SAVE);
+	}
+
+	public double getSaveP50Millis() {
+		return millis(Operation.SAVE, 0.5);
+	}
+
+	public double getSaveP99Millis() {
+		return millis(Operation.SAVE, 0.99);
+	}
+
+	public double getSaveP999Millis() {
+		return millis(Operation.SAVE, 0.999);
+	}
+
+	public long getRemoveCount() {
+		return count(Operation.REMOVE);
+	}
+
+	public long getRemoveErrors() {
+		return errors(Operation.REMOVE);
+	}
+
+	public double getRemoveP50Millis() {
+		return millis(Operation.REMOVE, 0.5);
+	}
+
+	public double getRemoveP99Millis() {
+		return millis(Operation.REMOVE, 0.99);
+	}
+
+	public double getRemoveP999Millis() {
+		return millis(Operation.REMOVE, 0.999);
+	}
+
+	public long getExpireScanCount() {
+		return count(Operation.EXPIRE_SCAN);
+	}
+
+	public long getExpireScanErrors() {
+		return errors(Operation.EXPIRE_SCAN);
+	}
+
+	public double getExpireScanP50Millis() {
+		return millis(Operation.EXPIRE_SCAN, 0.5);
+	}
+
+	public double getExpireScanP99Millis() {
+		return millis(Operation.EXPIRE_SCAN, 0.99);
+	}
+
+	public double getExpireScanP999Millis() {
+		return millis(Operation.EXPIRE_SCAN, 0.999);
+	}
+
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	public long getExpiredSessions() {
+		return expiredSessions.sum();
+	}
+
+	public long getThreadLocalHits() {
+		return threadLocalHits.sum();
+	}
+
+	public long getThreadLocalLookups() {
+		return threadLocalLookups.sum();
+	}
+
+	public double getThreadLocalHitRate() {
+		long lookups = getThreadLocalLookups();
+		return lookups == 0 ? 0 : (double) getThreadLocalHits() / lookups;
+	}
+
+	public long getSecondaryReads() {
+		return secondaryReads.sum();
+	}
+
+	public long getStaleSecondaryReads() {
+		return staleSecondaryReads.sum();
+	}
+
+	public void resetStatistics() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i].reset();
+			errors[i].reset();
+		}
+		bytesRead.reset();
+		bytesWritten.reset();
+		expiredSessions.reset();
+		threadLocalHits.reset();
+		threadLocalLookups.reset();
+		secondaryReads.reset();
+		staleSecondaryReads.reset();
+	}
+}
@@ -0,0 +1,87 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+/**
+ * Management interface of {@link SessionStoreMetrics}. Latencies are in
+ * milliseconds.
+ */
+public interface SessionStoreMetricsMBean {
+
+	long getLoadCount();
+
+	long getLoadErrors();
+
+	double getLoadP50Millis();
+
+	double getLoadP99Millis();
+
+	double getLoadP999Millis();
+
+	long getSaveCount();
+
+	long getSaveErrors();
+
+	double getSaveP50Millis();
+
+	double getSaveP99Millis();
+
+	double getSaveP999Millis();
+
+	long getRemoveCount();
+
+	long getRemoveErrors();
+
+	double getRemoveP50Millis();
+
+	double getRemoveP99Millis();
+
+	double getRemoveP999Millis();
+
+	long getExpireScanCount();
+
+	long getExpireScanErrors();
+
+	double getExpireScanP50Millis();
+
+	double getExpireScanP99Millis();
+
+	double getExpireScanP999Millis();
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	long getExpiredSessions();
+
+	long getThreadLocalHits();
+
+	long getThreadLocalLookups();
+
+	double getThreadLocalHitRate();
+
+	long getSecondaryReads();
+
+	long getStaleSecondaryReads();
+
+	void resetStatistics();
+}
@@ -0,0 +1,156 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Snapshot of what has to be written for one session: its attributes,
+ * already encoded unless immutable, which of them changed since the stored
+ * copy and whether a stored copy exists at all. Writes queued for the same
+ * session are coalesced with {@link #merge(SessionWrite)}.
+ */
+public class SessionWrite {
+	private final String id;
+	private final Map<Object, Object> data;
+	private final Set<String> changed;
+	private final Set<String> removed;
+	private final boolean stored;
+	private final long version;
+	private final int maxInactiveInterval;
+	private final long creationTime;
+	private final boolean delete;
+	private final String principal;
+
+	public SessionWrite(String id, Map<Object, Object> data,
+			Set<String> changed, Set<String> removed, boolean stored,
+			long version, int maxInactiveInterval, long creationTime,
+			String principal) {
+		this(id, data, changed, removed, stored, version, maxInactiveInterval,
+				creationTime, false, principal);
+	}
+
+	private SessionWrite(String id, Map<Object, Object> data,
+			Set<String> changed, Set<String> removed, boolean stored,
+			long version, int maxInactiveInterval, long creationTime,
+			boolean delete, String principal) {
+		this.id = id;
+		this.data = data;
+		this.changed = changed;
+		this.removed = removed;
+		this.stored = stored;
+		this.version = version;
+		this.maxInactiveInterval = maxInactiveInterval;
+		this.creationTime = creationTime;
+		this.delete = delete;
+		this.principal = principal;
+	}
+
+	public static SessionWrite delete(String id) {
+		Set<String> none = Collections.emptySet();
+		return new SessionWrite(id, Collections.<Object, Object> emptyMap(),
+				none, none, false, 0, -1, 0, true, null);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public Map<Object, Object> getData() {
+		return data;
+	}
+
+	public Set<String> getChanged() {
+		return changed;
+	}
+
+	public Set<String> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Whether the stored document can be updated in place, otherwise the
+	 * session has to be written in full.
+	 */
+	public boolean isStored() {
+		return stored;
+	}
+
+	/**
+	 * Version of the stored document this write was based on.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * The session's own timeout in seconds, 0 or less if it never expires.
+	 */
+	public int getMaxInactiveInterval() {
+		return maxInactiveInterval;
+	}
+
+	public long getCreationTime() {
+		return creationTime;
+	}
+
+	public boolean isDelete() {
+		return delete;
+	}
+
+	/**
+	 * Name of the principal to index the session by, null if unchanged.
+	 */
+	public String getPrincipal() {
+		return principal;
+	}
+
+	public boolean isTouch() {
+		return stored && changed.isEmpty() && removed.isEmpty()
+				&& principal == null;
+	}
+
+	/**
+	 * Combines this pending write with a later one for the same session so a
+	 * single write has the effect of both.
+	 */
+	public SessionWrite merge(SessionWrite later) {
+		if (later.delete || delete) {
+			return later;
+		}
+		Set<String> mergedChanged = new HashSet<String>(changed);
+		mergedChanged.removeAll(later.removed);
+		mergedChanged.addAll(later.changed);
+
+		Set<String> mergedRemoved = new HashSet<String>(removed);
+		mergedRemoved.removeAll(later.changed);
+		mergedRemoved.addAll(later.removed);
+
+		return new SessionWrite(id, later.data, mergedChanged, mergedRemoved,
+				stored && later.stored, version, later.maxInactiveInterval,
+				creationTime, false, later.principal != null ? later.principal
+						: principal);
+	}
+}
@@ -0,0 +1,89 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import org.bson.types.ObjectId;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+
+/**
+ * A time-bounded lease held in a Mongo document, so only one node of a
+ * cluster does a piece of work per interval. A lease is taken only once
+ * the previous one ran out, even by the node that held it, and is never
+ * released early.
+ */
+final class SweepLease {
+	private final DBCollection leases;
+	private final String name;
+	private final String owner = ManagementFactory.getRuntimeMXBean()
+			.getName() + "/" + new ObjectId();
+
+	SweepLease(DBCollection leases, String name) {
+		this.leases = leases;
+		this.name = name;
+	}
+
+	/**
+	 * Takes the lease for the given time if it has run out. Returns false if
+	 * another node holds it.
+	 */
+	boolean acquire(long millis) {
+		Date now = new Date();
+		BasicDBObject query = new BasicDBObject("_id", name);
+		query.put("until", new BasicDBObject("$lt", now));
+		BasicDBObject lease = new BasicDBObject("owner", owner);
+		lease.put("until", new Date(now.getTime() + millis));
+		try {
+			DBObject taken = leases.findAndModify(query, null, null, false,
+					new BasicDBObject("$set", lease), true, true);
+			return taken != null && owner.equals(taken.get("owner"));
+		} catch (MongoException e) {
+			// The upsert lost to a lease that has not run out
+			if (e.getCode() == 11000 || e.getCode() == 11001) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Extends a lease this node holds to the given time from now. Returns
+	 * false if it ran out and was taken by another node.
+	 */
+	boolean renew(long millis) {
+		BasicDBObject query = new BasicDBObject("_id", name);
+		query.put("owner", owner);
+		return leases.findAndModify(query, new BasicDBObject("$set",
+				new BasicDBObject("until", new Date(System.currentTimeMillis()
+						+ millis)))) != null;
+	}
+
+	String getOwner() {
+		return owner;
+	}
+}
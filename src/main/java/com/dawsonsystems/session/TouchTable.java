@@ -0,0 +1,93 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last-access times waiting to be written, held as one packed long per
+ * session: the access time in seconds and the session's timeout. Sessions
+ * with the same timeout are written together by a single multi-id update.
+ */
+final class TouchTable {
+	private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+
+	void put(String id, long accessTime, int maxInactiveInterval) {
+		pending.put(id, (accessTime / 1000) << 32
+				| (maxInactiveInterval & 0xffffffffL));
+	}
+
+	void remove(String id) {
+		pending.remove(id);
+	}
+
+	/**
+	 * Drops a pending touch made up to the given time, which a write of the
+	 * whole session has superseded.
+	 */
+	void persisted(String id, long time) {
+		Long packed = pending.get(id);
+		while (packed != null && accessTime(packed) <= time
+				&& !pending.remove(id, packed)) {
+			packed = pending.get(id);
+		}
+	}
+
+	boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Groups the pending sessions by timeout, mapping each id to its packed
+	 * access time and timeout.
+	 */
+	Map<Integer, Map<String, Long>> groups() {
+		Map<Integer, Map<String, Long>> groups = new HashMap<Integer, Map<String, Long>>();
+		for (Map.Entry<String, Long> entry : pending.entrySet()) {
+			Integer maxInactive = maxInactiveInterval(entry.getValue());
+			Map<String, Long> ids = groups.get(maxInactive);
+			if (ids == null) {
+				ids = new HashMap<String, Long>();
+				groups.put(maxInactive, ids);
+			}
+			ids.put(entry.getKey(), entry.getValue());
+		}
+		return groups;
+	}
+
+	/**
+	 * Drops a written touch, unless the session was touched again since.
+	 */
+	void written(String id, long packed) {
+		pending.remove(id, packed);
+	}
+
+	static long accessTime(long packed) {
+		return (packed >>> 32) * 1000;
+	}
+
+	static int maxInactiveInterval(long packed) {
+		return (int) packed;
+	}
+}
@@ -0,0 +1,512 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes attribute values into a compact tagged binary format. Common JDK
+ * types, including the standard collections, have their own tags and come
+ * back as exactly the same class. Externalizable classes listed in the
+ * registered-class table are written with a numeric id instead of a class
+ * name. Anything else that is Serializable falls back to Java serialization.
+ */
+public class TypedBinarySerializer extends JavaSerializer implements
+		BinarySerializer {
+
+	private static final int FORMAT_VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int NULL = 0;
+	private static final int STRING = 1;
+	private static final int INTEGER = 2;
+	private static final int LONG = 3;
+	private static final int TRUE = 4;
+	private static final int FALSE = 5;
+	private static final int DOUBLE = 6;
+	private static final int FLOAT = 7;
+	private static final int SHORT = 8;
+	private static final int BYTE = 9;
+	private static final int CHARACTER = 10;
+	private static final int DATE = 11;
+	private static final int BYTES = 12;
+	private static final int BIG_DECIMAL = 13;
+	private static final int BIG_INTEGER = 14;
+	private static final int ARRAY_LIST = 15;
+	private static final int LINKED_LIST = 16;
+	private static final int HASH_MAP = 17;
+	private static final int LINKED_HASH_MAP = 18;
+	private static final int TREE_MAP = 19;
+	private static final int HASH_SET = 20;
+	private static final int LINKED_HASH_SET = 21;
+	private static final int TREE_SET = 22;
+	private static final int ENUM = 23;
+	private static final int REGISTERED = 24;
+	private static final int SERIALIZABLE = 25;
+
+	private final List<Class<?>> registered = new ArrayList<Class<?>>();
+	private final Map<Class<?>, Integer> registeredIds = new ConcurrentHashMap<Class<?>, Integer>();
+
+	/**
+	 * Adds an Externalizable class to the registered-class table. Ids are
+	 * assigned in registration order, so every node must register the same
+	 * classes in the same order.
+	 */
+	public synchronized void registerClass(Class<? extends Externalizable> type) {
+		if (!registeredIds.containsKey(type)) {
+			registeredIds.put(type, registered.size());
+			registered.add(type);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void registerClasses(String classNames)
+			throws ClassNotFoundException {
+		for (String name : classNames.split(",")) {
+			if (name.trim().length() > 0) {
+				registerClass((Class<? extends Externalizable>) Class.forName(
+						name.trim(), true, classLoader()));
+			}
+		}
+	}
+
+	public byte[] encode(Object value) throws IOException {
+		Buffer bytes = new Buffer();
+		Output out = new Output(bytes);
+		out.writeByte(FORMAT_VERSION);
+		out.writeValue(value);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public Object decode(byte[] data, int offset, int length)
+			throws IOException, ClassNotFoundException {
+		Input in = new Input(new Source(data, offset, length));
+		int version = in.readUnsignedByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unknown session payload format " + version);
+		}
+		return in.readValue();
+	}
+
+	private static ClassLoader classLoader() {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		return loader != null ? loader : TypedBinarySerializer.class
+				.getClassLoader();
+	}
+
+	private class Output extends DataOutputStream implements ObjectOutput {
+
+		Output(OutputStream out) {
+			super(out);
+		}
+
+		public void writeObject(Object value) throws IOException {
+			writeValue(value);
+		}
+
+		void writeValue(Object value) throws IOException {
+			if (value == null) {
+				writeByte(NULL);
+				return;
+			}
+			Class<?> type = value.getClass();
+			if (type == String.class) {
+				writeByte(STRING);
+				writeString((String) value);
+			} else if (type == Integer.class) {
+				writeByte(INTEGER);
+				writeVarLong(zigZag((Integer) value));
+			} else if (type == Long.class) {
+				writeByte(LONG);
+				writeVarLong(zigZag((Long) value));
+			} else if (type == Boolean.class) {
+				writeByte((Boolean) value ? TRUE : FALSE);
+			} else if (type == Double.class) {
+				writeByte(DOUBLE);
+				writeDouble((Double) value);
+			} else if (type == Float.class) {
+				writeByte(FLOAT);
+				writeFloat((Float) value);
+			} else if (type == Short.class) {
+				writeByte(SHORT);
+				writeShort((Short) value);
+			} else if (type == Byte.class) {
+				writeByte(BYTE);
+				writeByte((Byte) value);
+			} else if (type == Character.class) {
+				writeByte(CHARACTER);
+				writeChar((Character) value);
+			} else if (type == Date.class) {
+				writeByte(DATE);
+				writeLong(((Date) value).getTime());
+			} else if (type == byte[].class) {
+				writeByte(BYTES);
+				writeBytes((byte[]) value);
+			} else if (type == BigDecimal.class) {
+				writeByte(BIG_DECIMAL);
+				writeString(value.toString());
+			} else if (type == BigInteger.class) {
+				writeByte(BIG_INTEGER);
+				writeBytes(((BigInteger) value).toByteArray());
+			} else if (type == ArrayList.class) {
+				writeCollection(ARRAY_LIST, (Collection<?>) value);
+			} else if (type == LinkedList.class) {
+				writeCollection(LINKED_LIST, (Collection<?>) value);
+			} else if (type == HashSet.class) {
+				writeCollection(HASH_SET, (Collection<?>) value);
+			} else if (type == LinkedHashSet.class) {
+				writeCollection(LINKED_HASH_SET, (Collection<?>) value);
+			} else if (type == TreeSet.class
+					&& ((TreeSet<?>) value).comparator() == null) {
+				writeCollection(TREE_SET, (Collection<?>) value);
+			} else if (type == HashMap.class) {
+				writeMap(HASH_MAP, (Map<?, ?>) value);
+			} else if (type == LinkedHashMap.class) {
+				writeMap(LINKED_HASH_MAP, (Map<?, ?>) value);
+			} else if (type == TreeMap.class
+					&& ((TreeMap<?, ?>) value).comparator() == null) {
+				writeMap(TREE_MAP, (Map<?, ?>) value);
+			} else if (value instanceof Enum) {
+				writeByte(ENUM);
+				writeString(((Enum<?>) value).getDeclaringClass().getName());
+				writeString(((Enum<?>) value).name());
+			} else if (registeredIds.containsKey(type)) {
+				writeByte(REGISTERED);
+				writeVarLong(registeredIds.get(type));
+				((Externalizable) value).writeExternal(this);
+			} else if (value instanceof Serializable) {
+				writeByte(SERIALIZABLE);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(bytes);
+				oos.writeObject(value);
+				oos.close();
+				writeBytes(bytes.toByteArray());
+			} else {
+				throw new IOException("Cannot serialize session attribute of "
+						+ type);
+			}
+		}
+
+		private void writeCollection(int tag, Collection<?> values)
+				throws IOException {
+			writeByte(tag);
+			writeVarLong(values.size());
+			for (Object value : values) {
+				writeValue(value);
+			}
+		}
+
+		private void writeMap(int tag, Map<?, ?> values) throws IOException {
+			writeByte(tag);
+			writeVarLong(values.size());
+			for (Map.Entry<?, ?> entry : values.entrySet()) {
+				writeValue(entry.getKey());
+				writeValue(entry.getValue());
+			}
+		}
+
+		private void writeString(String value) throws IOException {
+			writeBytes(value.getBytes(UTF8));
+		}
+
+		private void writeBytes(byte[] value) throws IOException {
+			writeVarLong(value.length);
+			write(value);
+		}
+
+		private void writeVarLong(long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				writeByte((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			writeByte((int) value);
+		}
+
+		private long zigZag(long value) {
+			return (value << 1) ^ (value >> 63);
+		}
+	}
+
+	private class Input extends DataInputStream implements ObjectInput {
+
+		Input(InputStream in) {
+			super(in);
+		}
+
+		public Object readObject() throws ClassNotFoundException, IOException {
+			return readValue();
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Object readValue() throws IOException, ClassNotFoundException {
+			int tag = readUnsignedByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case STRING:
+				return readString();
+			case INTEGER:
+				return (int) unZigZag(readVarLong());
+			case LONG:
+				return unZigZag(readVarLong());
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case DOUBLE:
+				return readDouble();
+			case FLOAT:
+				return readFloat();
+			case SHORT:
+				return readShort();
+			case BYTE:
+				return readByte();
+			case CHARACTER:
+				return readChar();
+			case DATE:
+				return new Date(readLong());
+			case BYTES:
+				return readBytes();
+			case BIG_DECIMAL:
+				return new BigDecimal(readString());
+			case BIG_INTEGER:
+				return new BigInteger(readBytes());
+			case ARRAY_LIST:
+				return readCollection(new ArrayList<Object>());
+			case LINKED_LIST:
+				return readCollection(new LinkedList<Object>());
+			case HASH_SET:
+				return readCollection(new HashSet<Object>());
+			case LINKED_HASH_SET:
+				return readCollection(new LinkedHashSet<Object>());
+			case TREE_SET:
+				return readCollection(new TreeSet<Object>());
+			case HASH_MAP:
+				return readMap(new HashMap<Object, Object>());
+			case LINKED_HASH_MAP:
+				return readMap(new LinkedHashMap<Object, Object>());
+			case TREE_MAP:
+				return readMap(new TreeMap<Object, Object>());
+			case ENUM:
+				Class enumType = Class.forName(readString(), false,
+						classLoader());
+				return Enum.valueOf(enumType, readString());
+			case REGISTERED:
+				return readRegistered((int) readVarLong());
+			case SERIALIZABLE:
+				byte[] bytes = readBytes();
+				ObjectInputStream ois = new ContextObjectInputStream(
+						new ByteArrayInputStream(bytes));
+				try {
+					return ois.readObject();
+				} finally {
+					ois.close();
+				}
+			default:
+				throw new IOException("Unknown session payload tag " + tag);
+			}
+		}
+
+		private Object readRegistered(int id) throws IOException,
+				ClassNotFoundException {
+			Class<?> type;
+			synchronized (TypedBinarySerializer.this) {
+				if (id >= registered.size()) {
+					throw new ClassNotFoundException("No class registered as "
+							+ id);
+				}
+				type = registered.get(id);
+			}
+			try {
+				Externalizable value = (Externalizable) type.newInstance();
+				value.readExternal(this);
+				return value;
+			} catch (InstantiationException e) {
+				throw new IOException("Unable to create " + type, e);
+			} catch (IllegalAccessException e) {
+				throw new IOException("Unable to create " + type, e);
+			}
+		}
+
+		private Collection<Object> readCollection(Collection<Object> values)
+				throws IOException, ClassNotFoundException {
+			long size = readVarLong();
+			for (long i = 0; i < size; i++) {
+				values.add(readValue());
+			}
+			return values;
+		}
+
+		private Map<Object, Object> readMap(Map<Object, Object> values)
+				throws IOException, ClassNotFoundException {
+			long size = readVarLong();
+			for (long i = 0; i < size; i++) {
+				Object key = readValue();
+				values.put(key, readValue());
+			}
+			return values;
+		}
+
+		private String readString() throws IOException {
+			return new String(readBytes(), UTF8);
+		}
+
+		private byte[] readBytes() throws IOException {
+			byte[] value = new byte[(int) readVarLong()];
+			readFully(value);
+			return value;
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readUnsignedByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed session payload");
+		}
+
+		private long unZigZag(long value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+	}
+
+	/**
+	 * Unsynchronized replacement for ByteArrayOutputStream, the payload is
+	 * written one byte at a time.
+	 */
+	private static class Buffer extends OutputStream {
+		private byte[] bytes = new byte[256];
+		private int count;
+
+		@Override
+		public void write(int b) {
+			ensure(1);
+			bytes[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, bytes, count, len);
+			count += len;
+		}
+
+		private void ensure(int extra) {
+			if (count + extra > bytes.length) {
+				bytes = Arrays.copyOf(bytes,
+						Math.max(bytes.length * 2, count + extra));
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, count);
+		}
+	}
+
+	/**
+	 * Unsynchronized replacement for ByteArrayInputStream.
+	 */
+	private static class Source extends InputStream {
+		private final byte[] bytes;
+		private final int end;
+		private int position;
+
+		Source(byte[] bytes, int offset, int length) {
+			this.bytes = bytes;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		@Override
+		public int read() {
+			return position < end ? bytes[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= end) {
+				return -1;
+			}
+			int n = Math.min(len, end - position);
+			System.arraycopy(bytes, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return end - position;
+		}
+	}
+
+	private static class ContextObjectInputStream extends ObjectInputStream {
+
+		ContextObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException {
+			try {
+				return Class.forName(desc.getName(), false, classLoader());
+			} catch (ClassNotFoundException e) {
+				return super.resolveClass(desc);
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds session writes until a background thread flushes them to Mongo.
+ * Writes for the same session are coalesced while they are pending, and a
+ * write stays visible through {@link #get(String)} until it has been written,
+ * so loads on this node never see an older copy than the one last saved.
+ */
+public class WriteBehindQueue {
+
+	public interface Writer {
+		void write(SessionWrite write) throws Exception;
+	}
+
+	private static Logger log = Logger.getLogger("MongoWriteBehind");
+
+	private final Writer writer;
+	private final int batchSize;
+	private final long flushMillis;
+	private final Semaphore capacity;
+	private final Map<String, SessionWrite> pending = new LinkedHashMap<String, SessionWrite>();
+	private volatile boolean running;
+	private Thread flusher;
+
+	public WriteBehindQueue(Writer writer, int queueSize, int batchSize,
+			long flushMillis) {
+		this.writer = writer;
+		this.batchSize = batchSize;
+		this.flushMillis = flushMillis;
+		this.capacity = new Semaphore(queueSize);
+	}
+
+	public void start(String name) {
+		running = true;
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				boolean failing = false;
+				while (running) {
+					awaitBatch(failing);
+					failing = flush(batchSize) == 0 && size() > 0;
+				}
+			}
+		}, name);
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Stops the background thread and writes everything still pending on the
+	 * calling thread.
+	 */
+	public void stop() throws InterruptedException {
+		running = false;
+		synchronized (pending) {
+			pending.notifyAll();
+		}
+		if (flusher != null) {
+			flusher.join();
+		}
+		while (size() > 0) {
+			if (flush(Integer.MAX_VALUE) == 0) {
+				log.severe("Discarding " + size()
+						+ " session writes that could not be flushed");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Queues a write, coalescing it with one already pending for the same
+	 * session. Blocks for up to timeoutMillis while the queue is full and
+	 * returns false if no room became available, leaving the caller to write
+	 * synchronously.
+	 */
+	public boolean offer(SessionWrite write, long timeoutMillis)
+			throws InterruptedException {
+		synchronized (pending) {
+			SessionWrite existing = pending.get(write.getId());
+			if (existing != null) {
+				pending.put(write.getId(), existing.merge(write));
+				return true;
+			}
+		}
+		if (!capacity.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+			return false;
+		}
+		synchronized (pending) {
+			SessionWrite existing = pending.get(write.getId());
+			if (existing != null) {
+				capacity.release();
+				pending.put(write.getId(), existing.merge(write));
+			} else {
+				pending.put(write.getId(), write);
+				if (pending.size() >= batchSize) {
+					pending.notifyAll();
+				}
+			}
+		}
+		return true;
+	}
+
+	public SessionWrite get(String id) {
+		synchronized (pending) {
+			return pending.get(id);
+		}
+	}
+
+	public int size() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Waits until a full batch is pending or the flush interval has passed.
+	 * After a flush that wrote nothing the full interval is always waited.
+	 */
+	private void awaitBatch(boolean failing) {
+		synchronized (pending) {
+			if (running && (failing || pending.size() < batchSize)) {
+				try {
+					pending.wait(flushMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					running = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes up to max pending entries and returns how many were written. An
+	 * entry is only dropped once written, and only if it was not replaced by
+	 * a coalesced write in the meantime. Failed writes stay queued and are
+	 * retried on the next flush.
+	 */
+	private int flush(int max) {
+		List<SessionWrite> batch;
+		synchronized (pending) {
+			batch = new ArrayList<SessionWrite>(Math.min(max, pending.size()));
+			for (SessionWrite write : pending.values()) {
+				if (batch.size() >= max) {
+					break;
+				}
+				batch.add(write);
+			}
+		}
+
+		int written = 0;
+		for (SessionWrite write : batch) {
+			try {
+				writer.write(write);
+				written++;
+			} catch (CircuitOpenException e) {
+				// Mongo is failing, leave the rest for a later flush
+				break;
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "Error writing session " + write.getId()
+						+ " to Mongo, will retry", e);
+				continue;
+			}
+			synchronized (pending) {
+				if (pending.get(write.getId()) == write) {
+					pending.remove(write.getId());
+					capacity.release();
+				}
+			}
+		}
+		return written;
+	}
+}
@@ -0,0 +1,99 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The versions of the sessions this node wrote recently. A copy read from a
+ * secondary that is older than the version written here has not caught up
+ * yet, and is read again from the primary. Bounded by size, and by age, as
+ * a write older than the longest expected replication lag has reached the
+ * secondaries.
+ */
+final class WrittenVersions {
+	/** Version recorded for a removed session, newer than any stored one. */
+	static final long REMOVED = Long.MAX_VALUE;
+
+	private static final class Written {
+		final long version;
+		final long at;
+
+		Written(long version, long at) {
+			this.version = version;
+			this.at = at;
+		}
+	}
+
+	private final Map<String, Written> written;
+	private final long rememberMillis;
+
+	WrittenVersions(final int maxSize, long rememberMillis) {
+		this.rememberMillis = rememberMillis;
+		this.written = new LinkedHashMap<String, Written>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Written> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	synchronized void written(String id, long version) {
+		// Re-inserted so the map stays in write order
+		written.remove(id);
+		written.put(id, new Written(version, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Returns the version last written for a session, or -1 if it was not
+	 * written here recently.
+	 */
+	synchronized long get(String id) {
+		Written last = written.get(id);
+		if (last == null) {
+			return -1;
+		}
+		if (System.currentTimeMillis() - last.at > rememberMillis) {
+			written.remove(id);
+			return -1;
+		}
+		return last.version;
+	}
+
+	/**
+	 * Whether a copy read from a secondary is older than what was written
+	 * here; version is null when no copy was found.
+	 */
+	boolean isStale(String id, Number version) {
+		long last = get(id);
+		if (last < 0) {
+			return false;
+		}
+		if (last == REMOVED) {
+			return version != null;
+		}
+		return version == null || version.longValue() < last;
+	}
+}
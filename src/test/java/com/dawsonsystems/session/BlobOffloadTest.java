@@ -0,0 +1,135 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.catalina.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Attributes offloaded to GridFS: not uploaded again when written back
+ * unchanged, and read as missing rather than failing while the circuit is
+ * open.
+ */
+public class BlobOffloadTest {
+
+	private static final long OPEN_MILLIS = 1000;
+
+	private final ManualClock clock = new ManualClock();
+	private FaultInjectingDB db;
+	private MongoSessionManager manager;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new FaultInjectingDB("blobs");
+		manager = Managers.manager(db);
+		manager.setDeltaPersistence(true);
+		manager.setOffloadThreshold(100);
+		manager.setCircuitFailureThreshold(1);
+		manager.setCircuitOpenMillis(OPEN_MILLIS);
+		manager.setClock(clock);
+		manager.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		manager.stop();
+	}
+
+	private static List<String> largeValue() {
+		List<String> value = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			value.add("item-" + i);
+		}
+		return value;
+	}
+
+	private String saveWithBlob() throws Exception {
+		Session session = manager.createSession(null);
+		session.getSession().setAttribute("large", largeValue());
+		session.getSession().setAttribute("small", "x");
+		manager.save(session);
+		assertEquals(1, blobs());
+		return session.getId();
+	}
+
+	private long blobs() {
+		return db.getCollection("sessionblobs.files").count();
+	}
+
+	@Test
+	public void unchangedBlobIsNotUploadedAgain() throws Exception {
+		String id = saveWithBlob();
+
+		Session session = manager.loadSession(id);
+		assertEquals(largeValue(), session.getSession().getAttribute("large"));
+		// A new timeout makes the next save write the session in full
+		session.setMaxInactiveInterval(session.getMaxInactiveInterval() + 60);
+		manager.save(session);
+		assertEquals(1, blobs());
+
+		assertEquals(largeValue(), manager.loadSession(id).getSession()
+				.getAttribute("large"));
+	}
+
+	@Test
+	public void changedBlobIsUploaded() throws Exception {
+		String id = saveWithBlob();
+
+		Session session = manager.loadSession(id);
+		@SuppressWarnings("unchecked")
+		List<String> large = (List<String>) session.getSession().getAttribute(
+				"large");
+		large.add("item-50");
+		session.setMaxInactiveInterval(session.getMaxInactiveInterval() + 60);
+		manager.save(session);
+		assertEquals(2, blobs());
+
+		assertEquals(51, ((List<?>) manager.loadSession(id).getSession()
+				.getAttribute("large")).size());
+	}
+
+	@Test
+	public void blobIsMissingWhileCircuitIsOpen() throws Exception {
+		String id = saveWithBlob();
+		Session session = manager.loadSession(id);
+
+		db.setFailing(true);
+		manager.save(manager.createSession(null));
+		assertTrue(manager.isCircuitOpen());
+		assertNull(session.getSession().getAttribute("large"));
+		assertEquals("x", session.getSession().getAttribute("small"));
+
+		db.setFailing(false);
+		clock.advance(OPEN_MILLIS);
+		manager.backgroundProcess();
+		assertEquals(largeValue(), session.getSession().getAttribute("large"));
+	}
+}
@@ -0,0 +1,126 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.catalina.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The circuit breaker opening after failed Mongo calls, sessions being kept
+ * locally while it is open and written back once Mongo is reachable again.
+ */
+public class CircuitBreakerTest {
+
+	private static final int FAILURE_THRESHOLD = 3;
+	private static final long OPEN_MILLIS = 100;
+
+	private final ManualClock clock = new ManualClock();
+	private FaultInjectingDB db;
+	private MongoSessionManager manager;
+
+	@Before
+	public void setUp() throws Exception {
+		db = new FaultInjectingDB("breaker");
+		manager = Managers.manager(db);
+		manager.setCircuitFailureThreshold(FAILURE_THRESHOLD);
+		manager.setCircuitOpenMillis(OPEN_MILLIS);
+		manager.setClock(clock);
+		manager.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		manager.stop();
+	}
+
+	private String save(String value) throws Exception {
+		Session session = manager.createSession(null);
+		session.getSession().setAttribute("value", value);
+		manager.save(session);
+		return session.getId();
+	}
+
+	@Test
+	public void opensAfterThresholdFailuresAndFailsFast() throws Exception {
+		db.setFailing(true);
+		for (int i = 0; i < FAILURE_THRESHOLD - 1; i++) {
+			save("outage" + i);
+			assertFalse(manager.isCircuitOpen());
+		}
+		save("outage");
+		assertTrue(manager.isCircuitOpen());
+
+		long writes = db.getWrites();
+		save("open");
+		clock.advance(OPEN_MILLIS - 1);
+		save("still open");
+		assertEquals("no call is made while open", writes, db.getWrites());
+	}
+
+	@Test
+	public void closesAndReconcilesOnceMongoIsBack() throws Exception {
+		db.setFailing(true);
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < FAILURE_THRESHOLD + 2; i++) {
+			ids.add(save("value" + i));
+		}
+		assertTrue(manager.isCircuitOpen());
+
+		db.setFailing(false);
+		clock.advance(OPEN_MILLIS);
+		manager.backgroundProcess();
+		assertFalse(manager.isCircuitOpen());
+
+		MongoSessionManager reader = Managers.manager(db);
+		reader.start();
+		try {
+			for (int i = 0; i < ids.size(); i++) {
+				assertEquals("value" + i, reader.loadSession(ids.get(i))
+						.getSession().getAttribute("value"));
+			}
+		} finally {
+			reader.stop();
+		}
+	}
+
+	@Test
+	public void opensAgainIfTrialCallFails() throws Exception {
+		db.setFailing(true);
+		for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+			save("outage" + i);
+		}
+		assertTrue(manager.isCircuitOpen());
+
+		clock.advance(OPEN_MILLIS);
+		manager.backgroundProcess();
+		assertTrue(manager.isCircuitOpen());
+	}
+}
@@ -0,0 +1,190 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.DBObject;
+
+import org.apache.catalina.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a save sends to Mongo: only the changed and removed attributes of a
+ * stored session with deltaPersistence, the whole session otherwise, and
+ * only the access time when nothing changed.
+ */
+public class DeltaPersistenceTest {
+
+	private FaultInjectingDB db;
+	private MongoSessionManager manager;
+
+	@Before
+	public void setUp() {
+		db = new FaultInjectingDB("delta");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (manager != null) {
+			manager.stop();
+		}
+	}
+
+	private void start(boolean deltaPersistence) throws Exception {
+		manager = Managers.manager(db);
+		manager.setDeltaPersistence(deltaPersistence);
+		manager.start();
+	}
+
+	private String saveNewSession() throws Exception {
+		Session session = manager.createSession(null);
+		List<String> cart = new ArrayList<String>();
+		cart.add("sku-1");
+		session.getSession().setAttribute("cart", cart);
+		session.getSession().setAttribute("user", "alice");
+		session.getSession().setAttribute("theme", "dark");
+		manager.save(session);
+		return session.getId();
+	}
+
+	private static DBObject part(DBObject update, String operator) {
+		DBObject part = (DBObject) update.get(operator);
+		assertTrue("update has no " + operator + ": " + update, part != null);
+		return part;
+	}
+
+	@Test
+	public void newSessionIsWrittenInFull() throws Exception {
+		start(true);
+		saveNewSession();
+
+		DBObject set = part(db.getLastUpdate(), "$set");
+		DBObject attrs = (DBObject) set.get("attrs");
+		assertEquals(3, attrs.keySet().size());
+		assertTrue(part(db.getLastUpdate(), "$unset").containsField("data"));
+	}
+
+	@Test
+	public void changedAttributeIsSetAndRemovedOneUnset() throws Exception {
+		start(true);
+		String id = saveNewSession();
+
+		Session session = manager.loadSession(id);
+		session.getSession().setAttribute("user", "bob");
+		session.getSession().removeAttribute("theme");
+		manager.save(session);
+
+		DBObject set = part(db.getLastUpdate(), "$set");
+		assertTrue(set.containsField("attrs.user"));
+		assertFalse(set.containsField("attrs.cart"));
+		assertFalse(set.containsField("attrs"));
+		DBObject unset = part(db.getLastUpdate(), "$unset");
+		assertEquals(1, unset.keySet().size());
+		assertTrue(unset.containsField("attrs.theme"));
+
+		Session reloaded = manager.loadSession(id);
+		assertEquals("bob", reloaded.getSession().getAttribute("user"));
+		assertNull(reloaded.getSession().getAttribute("theme"));
+		assertEquals(1, ((List<?>) reloaded.getSession().getAttribute("cart"))
+				.size());
+	}
+
+	@Test
+	public void attributeChangedInPlaceIsSet() throws Exception {
+		start(true);
+		String id = saveNewSession();
+
+		Session session = manager.loadSession(id);
+		@SuppressWarnings("unchecked")
+		List<String> cart = (List<String>) session.getSession().getAttribute(
+				"cart");
+		cart.add("sku-2");
+		manager.save(session);
+
+		DBObject set = part(db.getLastUpdate(), "$set");
+		assertTrue(set.containsField("attrs.cart"));
+		assertFalse(set.containsField("attrs.user"));
+		assertEquals(2, ((List<?>) manager.loadSession(id).getSession()
+				.getAttribute("cart")).size());
+	}
+
+	@Test
+	public void unchangedSessionOnlyUpdatesAccessTime() throws Exception {
+		start(true);
+		String id = saveNewSession();
+
+		manager.save(manager.loadSession(id));
+
+		DBObject update = db.getLastUpdate();
+		for (String field : part(update, "$set").keySet()) {
+			assertFalse(field, field.startsWith("attrs"));
+		}
+		assertFalse(update.containsField("$inc"));
+	}
+
+	@Test
+	public void unchangedSessionIsOnlyTouchedWithoutDeltaPersistence()
+			throws Exception {
+		start(false);
+		String id = saveNewSession();
+
+		long writes = db.getWrites();
+		manager.save(manager.loadSession(id));
+
+		assertEquals(writes + 1, db.getWrites());
+		DBObject update = db.getLastUpdate();
+		DBObject set = part(update, "$set");
+		assertFalse(set.containsField("data"));
+		assertFalse(set.containsField("attrs"));
+		assertFalse(update.containsField("$unset"));
+		assertFalse(update.containsField("$inc"));
+	}
+
+	@Test
+	public void everySaveIsFullWithoutDeltaPersistence() throws Exception {
+		start(false);
+		String id = saveNewSession();
+
+		Session session = manager.loadSession(id);
+		session.getSession().setAttribute("user", "bob");
+		manager.save(session);
+
+		DBObject set = part(db.getLastUpdate(), "$set");
+		assertTrue(set.containsField("data"));
+		for (String field : set.keySet()) {
+			assertFalse(field, field.startsWith("attrs"));
+		}
+		assertTrue(part(db.getLastUpdate(), "$unset").containsField("attrs"));
+		Session reloaded = manager.loadSession(id);
+		assertEquals("bob", reloaded.getSession().getAttribute("user"));
+		assertEquals("dark", reloaded.getSession().getAttribute("theme"));
+	}
+}
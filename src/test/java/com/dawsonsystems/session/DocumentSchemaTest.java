@@ -0,0 +1,54 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Times kept in both schemas.
+ */
+public class DocumentSchemaTest {
+
+	// 2040-01-01, past the int seconds range
+	private static final long AFTER_2038 = 2208988800000L;
+
+	@Test
+	public void compactTimesAreMillisPast2038() {
+		Object stored = DocumentSchema.COMPACT.time(AFTER_2038);
+		assertEquals(Long.valueOf(AFTER_2038), stored);
+		assertEquals(AFTER_2038, DocumentSchema.COMPACT.millis(stored));
+	}
+
+	@Test
+	public void legacyCompactSecondsAreRead() {
+		assertEquals(1700000000000L,
+				DocumentSchema.COMPACT.millis(Integer.valueOf(1700000000)));
+	}
+
+	@Test
+	public void longTimesAreMillis() {
+		assertEquals(AFTER_2038, DocumentSchema.LONG.millis(DocumentSchema.LONG
+				.time(AFTER_2038)));
+	}
+}
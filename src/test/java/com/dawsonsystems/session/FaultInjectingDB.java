@@ -0,0 +1,236 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory Fongo database whose collections can be made to fail or
+ * slow down, to simulate Mongo outages and elections. Single document
+ * reads, inserts, updates and removes are affected; cursor queries are
+ * not. Also counts the calls made, for reporting Mongo operations per
+ * request, and keeps the last update sent so tests can check its shape.
+ *
+ * With a replication lag set, single document reads that allow a secondary
+ * are served from a copy that replays the writes only once they are that
+ * old, like a secondary falling behind.
+ */
+public class FaultInjectingDB extends FongoDB {
+
+	// Created lazily, the FongoDB constructor already asks for collections
+	private Map<String, FongoDBCollection> collections;
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private volatile boolean failing;
+	private volatile long latencyMillis;
+	private volatile long replicationLagMillis = -1;
+	private volatile DBObject lastUpdate;
+	private DB secondary;
+	// Writes not applied to the secondary yet, oldest first
+	private final LinkedList<Replicated> oplog = new LinkedList<Replicated>();
+
+	public FaultInjectingDB(String name) {
+		super(new Fongo(name), name);
+	}
+
+	/**
+	 * Makes every call fail with a MongoException until set back to false.
+	 */
+	public void setFailing(boolean failing) {
+		this.failing = failing;
+	}
+
+	/**
+	 * Delays every call by this long before it runs, or fails.
+	 */
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Serves secondary reads from a copy this far behind. Set before the
+	 * first write, only writes made after it are replicated.
+	 */
+	public synchronized void setReplicationLagMillis(long replicationLagMillis) {
+		if (secondary == null) {
+			secondary = new Fongo(getName() + "-secondary").getDB(getName());
+		}
+		this.replicationLagMillis = replicationLagMillis;
+	}
+
+	public long getReads() {
+		return reads.get();
+	}
+
+	public long getWrites() {
+		return writes.get();
+	}
+
+	/**
+	 * The update document of the most recent single or multi update.
+	 */
+	public DBObject getLastUpdate() {
+		return lastUpdate;
+	}
+
+	@Override
+	protected synchronized FongoDBCollection doGetCollection(String name) {
+		if (collections == null) {
+			collections = new HashMap<String, FongoDBCollection>();
+		}
+		FongoDBCollection collection = collections.get(name);
+		if (collection == null) {
+			collection = new FaultyCollection(this, name);
+			collections.put(name, collection);
+		}
+		return collection;
+	}
+
+	private void fault() {
+		long latency = latencyMillis;
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (failing) {
+			throw new MongoException("Injected fault");
+		}
+	}
+
+	private abstract static class Replicated {
+		final long at = System.currentTimeMillis();
+		final String collection;
+
+		Replicated(String collection) {
+			this.collection = collection;
+		}
+
+		abstract void apply(DBCollection secondary);
+	}
+
+	private void replicate(Replicated write) {
+		if (replicationLagMillis >= 0) {
+			synchronized (oplog) {
+				oplog.add(write);
+			}
+		}
+	}
+
+	/**
+	 * Returns the secondary's copy of a collection, with the writes that are
+	 * older than the lag applied.
+	 */
+	private DBCollection secondary(String collection) {
+		long horizon = System.currentTimeMillis() - replicationLagMillis;
+		synchronized (oplog) {
+			while (!oplog.isEmpty() && oplog.getFirst().at <= horizon) {
+				Replicated write = oplog.removeFirst();
+				write.apply(secondary.getCollection(write.collection));
+			}
+		}
+		return secondary.getCollection(collection);
+	}
+
+	private class FaultyCollection extends FongoDBCollection {
+
+		FaultyCollection(FongoDB db, String name) {
+			super(db, name);
+		}
+
+		@Override
+		public DBObject findOne(DBObject query, DBObject fields,
+				DBObject orderBy, ReadPreference readPref) {
+			reads.incrementAndGet();
+			fault();
+			if (replicationLagMillis >= 0 && readPref != null
+					&& readPref.isSlaveOk()) {
+				return secondary(getName()).findOne(query, fields, orderBy,
+						ReadPreference.primary());
+			}
+			return super.findOne(query, fields, orderBy, readPref);
+		}
+
+		@Override
+		public WriteResult insert(final List<DBObject> documents,
+				WriteConcern concern, DBEncoder encoder) {
+			writes.incrementAndGet();
+			fault();
+			WriteResult result = super.insert(documents, concern, encoder);
+			replicate(new Replicated(getName()) {
+				void apply(DBCollection secondary) {
+					secondary.insert(documents);
+				}
+			});
+			return result;
+		}
+
+		@Override
+		public WriteResult update(final DBObject query,
+				final DBObject update, final boolean upsert,
+				final boolean multi, WriteConcern concern, DBEncoder encoder) {
+			writes.incrementAndGet();
+			fault();
+			lastUpdate = update;
+			WriteResult result = super.update(query, update, upsert, multi,
+					concern, encoder);
+			replicate(new Replicated(getName()) {
+				void apply(DBCollection secondary) {
+					secondary.update(query, update, upsert, multi);
+				}
+			});
+			return result;
+		}
+
+		@Override
+		public WriteResult remove(final DBObject query, WriteConcern concern,
+				DBEncoder encoder) {
+			writes.incrementAndGet();
+			fault();
+			WriteResult result = super.remove(query, concern, encoder);
+			replicate(new Replicated(getName()) {
+				void apply(DBCollection secondary) {
+					secondary.remove(query);
+				}
+			});
+			return result;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mongodb.DBObject;
+
+import org.apache.catalina.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.Principal;
+
+/**
+ * The indexed principal being written once, and a reloaded session whose
+ * principal has not changed being saved as a touch.
+ */
+public class IndexPrincipalTest {
+
+	private FaultInjectingDB db;
+	private MongoSessionManager manager;
+
+	@Before
+	public void setUp() {
+		db = new FaultInjectingDB("principal");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		manager.stop();
+	}
+
+	private void start(int nearCacheSize) throws Exception {
+		manager = Managers.manager(db);
+		manager.setIndexPrincipal(true);
+		manager.setNearCacheSize(nearCacheSize);
+		manager.start();
+	}
+
+	private static Principal user(final String name) {
+		return new Principal() {
+			public String getName() {
+				return name;
+			}
+		};
+	}
+
+	private String saveLoggedIn() throws Exception {
+		Session session = manager.createSession(null);
+		session.setPrincipal(user("alice"));
+		session.getSession().setAttribute("theme", "dark");
+		manager.save(session);
+		DBObject set = (DBObject) db.getLastUpdate().get("$set");
+		assertEquals("alice", set.get("principal"));
+		return session.getId();
+	}
+
+	private void assertReloadIsTouch(String id) throws Exception {
+		Session session = manager.loadSession(id);
+		session.setPrincipal(user("alice"));
+		manager.save(session);
+
+		DBObject update = db.getLastUpdate();
+		DBObject set = (DBObject) update.get("$set");
+		assertFalse(set.containsField("principal"));
+		assertFalse(set.containsField("data"));
+		assertFalse(update.containsField("$inc"));
+	}
+
+	@Test
+	public void reloadedSessionWithSamePrincipalIsTouched() throws Exception {
+		start(0);
+		assertReloadIsTouch(saveLoggedIn());
+	}
+
+	@Test
+	public void cachedSessionWithSamePrincipalIsTouched() throws Exception {
+		start(100);
+		String id = saveLoggedIn();
+		assertReloadIsTouch(id);
+		assertReloadIsTouch(id);
+	}
+
+	@Test
+	public void changedPrincipalIsWritten() throws Exception {
+		start(0);
+		String id = saveLoggedIn();
+
+		Session session = manager.loadSession(id);
+		session.setPrincipal(user("bob"));
+		manager.save(session);
+
+		DBObject set = (DBObject) db.getLastUpdate().get("$set");
+		assertEquals("bob", set.get("principal"));
+		assertTrue(db.getLastUpdate().containsField("$inc"));
+	}
+}
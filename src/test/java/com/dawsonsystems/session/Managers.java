@@ -0,0 +1,58 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import com.mongodb.DB;
+
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardHost;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Managers running outside Tomcat, for the tests.
+ */
+final class Managers {
+
+	private Managers() {
+	}
+
+	/**
+	 * Creates a manager storing sessions in the given database, left for the
+	 * caller to configure and start.
+	 */
+	static MongoSessionManager manager(DB db) {
+		Logger.getLogger("MongoManager").setLevel(Level.SEVERE);
+		StandardHost host = new StandardHost();
+		host.setName("localhost");
+		StandardContext context = new StandardContext();
+		context.setName("test");
+		context.setPath("/test");
+		host.addChild(context);
+
+		MongoSessionManager manager = new MongoSessionManager();
+		manager.setContext(context);
+		manager.setDb(db);
+		return manager;
+	}
+}
@@ -0,0 +1,100 @@
+/***********************************************************************************************************************
+ *
+ * Mongo Tomcat Sessions
+ * ==========================================
+ *
+ * Copyright (C) 2012 by Dawson Systems Ltd (http://www.dawsonsystems.com)
+ *
+ ***********************************************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ **********************************************************************************************************************/
+
+
+package com.dawsonsystems.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.catalina.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sessions read from a secondary that has not caught up with a write made
+ * on this node are read again from the primary.
+ */
+public class ReadYourWritesTest {
+
+	private FaultInjectingDB db;
+	private MongoSessionManager manager;
+
+	@Before
+	public void setUp() {
+		db = new FaultInjectingDB("replica");
+		db.setReplicationLagMillis(60 * 1000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		manager.stop();
+	}
+
+	private void start(int readYourWritesSize) throws Exception {
+		manager = Managers.manager(db);
+		manager.setReadPreference("secondaryPreferred");
+		manager.setReadYourWritesSize(readYourWritesSize);
+		manager.start();
+	}
+
+	private String saveUpdatedSession() throws Exception {
+		Session session = manager.createSession(null);
+		session.getSession().setAttribute("counter", 1);
+		manager.save(session);
+		session = manager.loadSession(session.getId());
+		session.getSession().setAttribute("counter", 2);
+		manager.save(session);
+		return session.getId();
+	}
+
+	@Test
+	public void staleSecondaryIsReadAgainFromPrimary() throws Exception {
+		start(100);
+		String id = saveUpdatedSession();
+
+		assertEquals(2, manager.loadSession(id).getSession().getAttribute(
+				"counter"));
+		assertTrue(manager.getMetrics().getStaleSecondaryReads() > 0);
+	}
+
+	@Test
+	public void secondaryLagsWithoutReadYourWrites() throws Exception {
+		start(0);
+		String id = saveUpdatedSession();
+
+		assertNull(manager.loadSession(id).getSession().getAttribute(
+				"counter"));
+		assertEquals(0, manager.getMetrics().getStaleSecondaryReads());
+	}
+
+	@Test
+	public void removedSessionIsNotReadFromSecondary() throws Exception {
+		start(100);
+		String id = saveUpdatedSession();
+		Session session = manager.loadSession(id);
+		manager.remove(session);
+
+		assertNull(manager.loadSession(id).getSession().getAttribute(
+				"counter"));
+	}
+}